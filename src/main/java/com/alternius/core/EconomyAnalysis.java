@@ -1,14 +1,29 @@
 package com.alternius.core;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 import com.alternius.db.DatabaseConnector;
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
 import com.alternius.models.Transaction;
+import com.alternius.store.MetricsStore;
+import com.alternius.store.PostgresMetricsStore;
 
 /**
  * Main processing class - contains all the logic for querying and updating
@@ -16,13 +31,29 @@ import com.alternius.models.Transaction;
  */
 public class EconomyAnalysis {
 
-	private final DatabaseConnector dbConnector;
+	private static final int ACCOUNT_LOCK_STRIPES = 256;
+
+	private final MetricsStore metricsStore;
 
 	// Last 20 transactions for each account - wasn't sure if this was to be stored
 	// in memory or in a Postgres database with the other metrics.
 	// If I were to store it in a Postgres database, probably store it as a single
 	// column using jsonb?
-	private Map<Long, LinkedList<Transaction>> accountTransactions = new HashMap<>();
+	// Split into one set per account lock stripe, each guarded by its stripe.
+	private final RecentTransactions[] recentTransactions = new RecentTransactions[ACCOUNT_LOCK_STRIPES];
+	private final LockStripes accountLocks = new LockStripes(ACCOUNT_LOCK_STRIPES);
+	// Metric writes take no group locks here. The store keeps each group's
+	// balances right itself, locking only what needs it rather than holding a
+	// lock across every database round trip.
+
+	// Skips transactions that have already been processed, if set
+	private volatile TransactionDeduplicator deduplicator;
+
+	// Runs transactions passed to submitTransaction(), started on first use
+	private ExecutorService transactionExecutor;
+	// Bounded alternative to transactionExecutor, if set up
+	private volatile SubmitQueue submitQueue;
+	private final Set<CompletableFuture<Void>> submitted = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Constructor for EconomyAnalysis
@@ -30,91 +61,352 @@ public class EconomyAnalysis {
 	 * @param dbConnector instance of DatabaseConnector
 	 */
 	public EconomyAnalysis(DatabaseConnector dbConnector) {
-		this.dbConnector = dbConnector;
+		this(dbConnector, false);
+	}
+
+	/**
+	 * Constructor for EconomyAnalysis
+	 * 
+	 * @param dbConnector instance of DatabaseConnector
+	 * @param batchWrites whether metric updates should be queued and sent in
+	 *                    batches rather than one round trip at a time. Call
+	 *                    flush() when done to send anything still queued.
+	 */
+	public EconomyAnalysis(DatabaseConnector dbConnector, boolean batchWrites) {
+		this(new PostgresMetricsStore(dbConnector, batchWrites));
+	}
+
+	/**
+	 * Constructor for EconomyAnalysis
+	 * 
+	 * @param metricsStore where calculated metrics should be stored
+	 */
+	public EconomyAnalysis(MetricsStore metricsStore) {
+		this.metricsStore = metricsStore;
+		for (int i = 0; i < recentTransactions.length; i++) {
+			recentTransactions[i] = new RecentTransactions();
+		}
 	}
 
 	/**
 	 * Processes details for a given transaction and updates metrics in the
-	 * database.
+	 * metrics store. Safe to call from several threads - transactions between
+	 * unrelated groups and accounts don't wait for each other.
 	 * 
 	 * @param transaction transaction to be processed
 	 */
 	public void processTransaction(Transaction transaction) {
+		if (isDuplicate(transaction))
+			return;
+
+		// The stored metrics for a transaction are one unit, so stores that group
+		// writes into database transactions can roll back a failed transaction's
+		// changes without losing anyone else's
 		try {
-			updateGroupTransfers(transaction);
-			updateRecentTransactions(transaction);
-			updateTotalPerGroup(transaction);
-		} catch (SQLException e) {
+			metricsStore.beginUnit();
+			updateMetrics(transaction);
+			metricsStore.endUnit();
+		} catch (SQLException | RuntimeException e) {
+			// Anything thrown while the unit is open has to end it, or the store can be
+			// left holding it, e.g. a TRANSACTIONAL session lock
+			metricsStore.abortUnit();
+			// Let a retry of the transaction through
+			markProcessed(Collections.singletonList(transaction.getId()), false);
+			if (e instanceof RuntimeException)
+				throw (RuntimeException) e;
 			e.printStackTrace();
+			return;
 		}
+
+		markProcessed(Collections.singletonList(transaction.getId()), true);
+		// Only once the metrics are in, so a retry doesn't add it twice
+		updateRecentTransactions(transaction);
 	}
 
 	/**
-	 * Calculates and updates metric for total transfers between groups. Does not
-	 * track bidirectionally so that, for example, transactions from groups 1 -> 2
-	 * can be tracked separately from groups 2 -> 1.
+	 * Processes a transaction on a thread of its own and returns straight away.
+	 * For transactions arriving from many sources at once: each waits on the
+	 * database independently, so their latency overlaps. Uses a virtual thread
+	 * per transaction when running on Java 21 or later, and a pool of platform
+	 * threads otherwise. flush() waits for submitted transactions to finish.
+	 * 
+	 * Nothing limits how many transactions can be in flight this way. Call
+	 * useSubmitQueue() first to queue them for a fixed number of threads instead.
 	 * 
 	 * @param transaction transaction to be processed
-	 * @throws SQLException
+	 * @return future completed once the transaction has been processed
+	 * @throws RejectedExecutionException if a submit queue is in use and rejected
+	 *                                    the transaction
 	 */
-	private void updateGroupTransfers(Transaction transaction) throws SQLException {
-		// Get sender ID, recipient ID, and date of transaction
-		long senderGroupId = transaction.getSender().getGroupId();
-		long recipientGroupId = transaction.getRecipient().getGroupId();
-		LocalDate transactionDate = transaction.getDate();
+	public CompletableFuture<Void> submitTransaction(Transaction transaction) {
+		SubmitQueue queue = submitQueue;
+		CompletableFuture<Void> future = queue != null ? queue.submit(transaction)
+				: CompletableFuture.runAsync(() -> processTransaction(transaction), transactionExecutor());
+		submitted.add(future);
+		future.whenComplete((result, error) -> submitted.remove(future));
+		return future;
+	}
+
+	/**
+	 * Processes a large number of historical transactions at once. Rather than
+	 * updating metrics per transaction, sums are aggregated in memory per group
+	 * pair and day and per group and day, then handed to the metrics store in one
+	 * bulk load.
+	 * 
+	 * @param transactions transactions to be processed
+	 */
+	public void backfill(Iterable<Transaction> transactions) {
+		TransactionBatch batch = new TransactionBatch(RecentTransactions.DEFAULT_LIMIT);
+		for (Transaction transaction : transactions) {
+			if (!isDuplicate(transaction))
+				batch.add(transaction);
+		}
 
-		// Construct query to get sum and number of transfers between sender and
-		// recipient groups and date to check whether it exists
-		String query = "SELECT sum_transfers, num_transfers FROM daily_group_transfer WHERE origin_group_id = "
-				+ senderGroupId + " AND destination_group_id = " + recipientGroupId + " AND date = '" + transactionDate
-				+ "'";
-
-		ResultSet rs = dbConnector.executeQuery(query);
-		if (rs != null && rs.next()) {
-			// Record exists, update it
-			double sumTransfers = rs.getDouble("sum_transfers") + transaction.getAmount();
-			long numTransfers = rs.getLong("num_transfers") + 1;
-
-			String updateQuery = "UPDATE daily_group_transfer SET sum_transfers = " + sumTransfers
-					+ ", num_transfers = " + numTransfers + " WHERE origin_group_id = " + senderGroupId
-					+ " AND destination_group_id = " + recipientGroupId + " AND date = '" + transactionDate + "'";
-			dbConnector.executeUpdate(updateQuery);
-		} else {
-			// Record does not exist, insert a new one setting initial sum_transfers value
-			// to transaction amount and num_transfers to 1
-			String insertQuery = "INSERT INTO daily_group_transfer (date, sum_transfers, num_transfers, origin_group_id, destination_group_id) VALUES ('"
-					+ transactionDate + "', " + transaction.getAmount() + ", 1, " + senderGroupId + ", "
-					+ recipientGroupId + ")";
-			dbConnector.executeUpdate(insertQuery);
+		try {
+			metricsStore.bulkLoad(batch.getTransfers(), batch.getBalanceChanges());
+		} catch (SQLException | RuntimeException e) {
+			markProcessed(batch.getTransactionIds(), false);
+			if (e instanceof RuntimeException)
+				throw (RuntimeException) e;
+			e.printStackTrace();
+			return;
 		}
+		markProcessed(batch.getTransactionIds(), true);
+		// Only once the metrics are in, so a retry doesn't add them twice
+		updateRecentTransactions(batch);
 	}
 
 	/**
-	 * Calculates and updates the total balance per group. For the sender, deducts
-	 * the transaction amount from their sum. For the recipient, adds the
-	 * transaction amount to their sum.
+	 * Processes a batch of transactions, with the same result as passing each one
+	 * to processTransaction() in date order. The whole batch is summed in memory
+	 * first - net transfers per group pair and day, net balance change per group
+	 * and day, and the latest transactions per account - so each of those is
+	 * written once however many transactions touched it. The batch's metric
+	 * changes form one unit.
 	 * 
-	 * When the first transaction of a day occurs for a given group, calculates the
-	 * balance by fetching sum of transfers all-time for the group minus the given
-	 * transaction amount. This is not the most efficient approach, but was the best
-	 * I could think of with the given data without creating extra tables to store
-	 * accounts and balances.
+	 * @param transactions transactions to be processed, in order
+	 */
+	public void processTransactions(List<Transaction> transactions) {
+		TransactionBatch batch = new TransactionBatch(RecentTransactions.DEFAULT_LIMIT);
+		for (Transaction transaction : transactions) {
+			if (!isDuplicate(transaction))
+				batch.add(transaction);
+		}
+		apply(batch);
+	}
+
+	/**
+	 * Processes a stream of transactions as one batch. See
+	 * processTransactions(List).
+	 * 
+	 * @param transactions transactions to be processed, in order
+	 */
+	public void processTransactions(Stream<Transaction> transactions) {
+		TransactionBatch batch = new TransactionBatch(RecentTransactions.DEFAULT_LIMIT);
+		transactions.filter(transaction -> !isDuplicate(transaction)).forEachOrdered(batch::add);
+		apply(batch);
+	}
+
+	/**
+	 * Makes submitTransaction() hand transactions to a bounded queue worked
+	 * through by a fixed number of threads, so bursts are absorbed up to the
+	 * queue's capacity and then slowed or shed according to the policy, rather
+	 * than every transaction getting a thread of its own to wait on the database
+	 * with. Replaces any queue set up before, once it has finished its queued
+	 * transactions.
+	 * 
+	 * @param capacity      number of transactions that can wait in the queue
+	 * @param workers       number of threads processing transactions, e.g. the
+	 *                      size of the connection pool
+	 * @param policy        what to do with transactions submitted while the
+	 *                      queue is full
+	 * @param timeoutMillis how long to wait for space with SubmitPolicy.TIMED
+	 * @return the queue, for its depth, wait time and rejection counters
+	 */
+	public SubmitQueue useSubmitQueue(int capacity, int workers, SubmitPolicy policy, long timeoutMillis) {
+		SubmitQueue previous = submitQueue;
+		submitQueue = new SubmitQueue(capacity, workers, policy, timeoutMillis, this::processTransaction);
+		if (previous != null)
+			previous.shutdown();
+		return submitQueue;
+	}
+
+	/**
+	 * Returns the queue set up by useSubmitQueue().
+	 * 
+	 * @return SubmitQueue, or null if submitTransaction() isn't using one
+	 */
+	public SubmitQueue getSubmitQueue() {
+		return submitQueue;
+	}
+
+	/**
+	 * Makes every processing method skip transactions whose ID has already been
+	 * seen, e.g. because upstream retried a delivery. Off by default. IDs are
+	 * only recorded once their metrics have been handed to the metrics store, and
+	 * flush() moves the deduplicator's watermark up to what it has flushed.
+	 * 
+	 * @param deduplicator deduplicator to check IDs with, or null to process
+	 *                     every transaction
+	 */
+	public void setDeduplicator(TransactionDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	/**
+	 * Returns the number of transactions skipped as duplicates so far.
+	 *
+	 * @return duplicate count, or 0 without a deduplicator
+	 */
+	public long getDuplicateCount() {
+		TransactionDeduplicator current = deduplicator;
+		return current == null ? 0 : current.getDuplicateCount();
+	}
+
+	/**
+	 * Returns the number of transactions skipped as probable duplicates because
+	 * the deduplicator's Bloom filter matched them. See
+	 * TransactionDeduplicator.getProbableDuplicateCount().
+	 *
+	 * @return probable duplicate count, or 0 without a deduplicator
+	 */
+	public long getProbableDuplicateCount() {
+		TransactionDeduplicator current = deduplicator;
+		return current == null ? 0 : current.getProbableDuplicateCount();
+	}
+
+	/**
+	 * Returns the most recent transactions sent or received by an account, oldest
+	 * first.
+	 * 
+	 * @param accountId ID of the account
+	 * @return list of up to 20 transactions
+	 */
+	public List<Transaction> getRecentTransactions(long accountId) {
+		ReentrantLock lock = accountLocks.get(accountId);
+		lock.lock();
+		try {
+			return recentTransactions[accountLocks.indexFor(accountId)].get(accountId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for submitted transactions to finish, then sends any metric updates
+	 * that are still queued in the metrics store. If that succeeds, the
+	 * deduplicator's watermark moves up to the IDs recorded beforehand.
+	 */
+	public void flush() {
+		for (CompletableFuture<Void> future : new ArrayList<>(submitted)) {
+			try {
+				future.join();
+			} catch (CompletionException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// Everything recorded by now has reached the store, so is covered by the
+		// flush
+		TransactionDeduplicator current = deduplicator;
+		long checkpoint = current == null ? 0 : current.checkpoint();
+		try {
+			metricsStore.flush();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (current != null)
+			current.advanceWatermark(checkpoint);
+	}
+
+	/**
+	 * Checks a transaction against the deduplicator, for front ends that write
+	 * its metrics later on themselves through applyMetrics() or
+	 * applyCorrections(). Its ID stays claimed until one of those has written it.
 	 * 
 	 * @param transaction transaction to be processed
-	 * @throws SQLException
+	 * @return false if it is a duplicate and should be skipped
 	 */
-	private void updateTotalPerGroup(Transaction transaction) throws SQLException {
-		long senderGroupId = transaction.getSender().getGroupId();
-		long recipientGroupId = transaction.getRecipient().getGroupId();
-		LocalDate transactionDate = transaction.getDate();
-		double transactionAmount = transaction.getAmount();
+	boolean admit(Transaction transaction) {
+		return !isDuplicate(transaction);
+	}
 
-		// For sender, deduct the transaction amount from their total balance for the
-		// date since they sent money
-		updateTotalPerDayOrInsert(senderGroupId, transactionDate, -1 * transactionAmount);
-		// Opposite for recipient - they received money, so send a positive value to be
-		// added
-		updateTotalPerDayOrInsert(recipientGroupId, transactionDate, transactionAmount);
+	/**
+	 * Writes a summed batch, giving up on its transaction IDs if the write fails
+	 * so retries of them are let through.
+	 * 
+	 * @param batch summed transactions
+	 */
+	private void apply(TransactionBatch batch) {
+		boolean written = false;
+		try {
+			written = applyMetrics(batch);
+		} finally {
+			if (!written)
+				markProcessed(batch.getTransactionIds(), false);
+		}
+	}
+
+	/**
+	 * Writes a summed batch's metrics as one unit, then its recent transactions
+	 * once the metrics are in. Balances are written earliest day first so each
+	 * new day is opened from the one before it.
+	 * 
+	 * If the write fails, the batch's transaction IDs stay claimed, so the caller
+	 * can try the same batch again without anything else slipping in. Callers
+	 * that give up on it release them with markProcessed().
+	 * 
+	 * @param batch summed transactions
+	 * @return true if the metrics were written, false if the write failed and
+	 *         has been reported
+	 */
+	boolean applyMetrics(TransactionBatch batch) {
+		try {
+			metricsStore.beginUnit();
+			for (GroupTransfer transfer : batch.getTransfers()) {
+				metricsStore.addGroupTransfer(transfer.getDate(), transfer.getOriginGroupId(),
+						transfer.getDestinationGroupId(), transfer.getSumTransfers(), transfer.getNumTransfers());
+			}
+			for (GroupBalance balance : batch.getBalanceChanges()) {
+				updateTotalPerDayOrInsert(balance.getGroupId(), balance.getDate(), balance.getAmount());
+			}
+			metricsStore.endUnit();
+		} catch (SQLException | RuntimeException e) {
+			metricsStore.abortUnit();
+			if (e instanceof RuntimeException)
+				throw (RuntimeException) e;
+			e.printStackTrace();
+			return false;
+		}
+		markProcessed(batch.getTransactionIds(), true);
+		// Only once the metrics are in, so a retry doesn't add them twice
+		updateRecentTransactions(batch);
+		return true;
+	}
+
+	/**
+	 * Writes a summed batch of changes to days whose metrics have already been
+	 * written, e.g. late transactions, through the metrics store's bulk load so
+	 * balance changes carry forward to every later day. Anything still queued in
+	 * the store is flushed first so the load sees it. Recent transactions and
+	 * failures are handled as by applyMetrics().
+	 * 
+	 * @param batch summed transactions
+	 * @return true if the changes were written, false if the write failed and
+	 *         has been reported
+	 */
+	boolean applyCorrections(TransactionBatch batch) {
+		try {
+			metricsStore.flush();
+			metricsStore.bulkLoad(batch.getTransfers(), batch.getBalanceChanges());
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		}
+		markProcessed(batch.getTransactionIds(), true);
+		updateRecentTransactions(batch);
+		return true;
 	}
 
 	/**
@@ -127,63 +419,130 @@ public class EconomyAnalysis {
 	 *                        subtract
 	 * @throws SQLException
 	 */
-	private void updateTotalPerDayOrInsert(long groupId, LocalDate transactionDate, double amountToAdd)
+	private void updateTotalPerDayOrInsert(long groupId, LocalDate transactionDate, long amountToAdd)
 			throws SQLException {
-		// Construct query to get the balance of the given group on the given date
-		String query = "SELECT amount FROM total_by_group WHERE account_group_id = " + groupId + " AND date = '"
-				+ transactionDate + "'";
-
-		ResultSet rs = dbConnector.executeQuery(query);
-		if (rs != null && rs.next()) {
-			// Record exists for the date, update it
-			double amount = rs.getDouble("amount");
-
-			String updateQuery = "UPDATE total_by_group SET amount = " + (amount + amountToAdd)
-					+ " WHERE account_group_id = " + groupId;
-			dbConnector.executeUpdate(updateQuery);
-		} else {
-			// Record does not exist for their total for the day, so calculate based on sum
-			// of received money minus sum of sent money all time
-			String sumQuery = "SELECT(SELECT SUM(sum_transfers) FROM daily_group_transfer WHERE destination_group_id = "
-					+ groupId + ")" + "-(SELECT SUM(sum_transfers) FROM daily_group_transfer WHERE origin_group_id = "
-					+ groupId + ") AS difference;";
-			rs = dbConnector.executeQuery(sumQuery);
-
-			if (rs != null && rs.next()) {
-				// Fetch difference (sum of received money - sum of sent money all time) and
-				// create new row in total_by_group using that as the initial number
-				double sum = rs.getDouble("difference");
-
-				String insertQuery = "INSERT INTO total_by_group (account_group_id, date, amount) VALUES (" + groupId
-						+ ", '" + transactionDate + "', " + sum + ")";
-				dbConnector.executeUpdate(insertQuery);
-			}
-		}
+		// Add to the group's balance for the date, seeding it from the previous
+		// closing balance if it does not exist yet
+		metricsStore.addGroupBalance(groupId, transactionDate, amountToAdd);
+	}
+
+	/**
+	 * Calculates and updates metric for total transfers between groups, and the
+	 * total balance per group. Transfers are not tracked bidirectionally so that,
+	 * for example, transactions from groups 1 -> 2 can be tracked separately from
+	 * groups 2 -> 1. For the sender, deducts the transaction amount from their
+	 * balance. For the recipient, adds the transaction amount to their balance.
+	 * 
+	 * When the first transaction of a day occurs for a given group, the new row is
+	 * seeded with the group's closing balance from the last day it has a row for,
+	 * so the balance carries over between days.
+	 * 
+	 * The three changes are handed to the store together so it can write them in
+	 * one go.
+	 * 
+	 * @param transaction transaction to be processed
+	 * @throws SQLException
+	 */
+	private void updateMetrics(Transaction transaction) throws SQLException {
+		// Get sender ID, recipient ID, and date of transaction
+		long senderGroupId = transaction.getSender().getGroupId();
+		long recipientGroupId = transaction.getRecipient().getGroupId();
+		LocalDate transactionDate = transaction.getDate();
+
+		metricsStore.recordTransfer(transactionDate, senderGroupId, recipientGroupId, transaction.getAmount());
 	}
 
 	/**
-	 * Updates the accountTransactions map to store the 20 most recent transactions
-	 * for each user. Adds the transaction and removes the oldest if list size > 20.
+	 * Updates the recent transactions to store the 20 most recent transactions for
+	 * each user. Adds the transaction for both the sender and the recipient,
+	 * removing their oldest if they already have 20.
 	 * 
 	 * @param transaction transaction to be processed
 	 */
 	private void updateRecentTransactions(Transaction transaction) {
-		// Fetches the transactions list for the sender from the accountTransactions
-		// map, or creates it and maps it to the account ID if it does not exist
-		LinkedList<Transaction> senderTransactions = accountTransactions
-				.computeIfAbsent(transaction.getSender().getId(), id -> new LinkedList<>());
-		if (senderTransactions.size() >= 20) {
-			// Remove the oldest transaction if the list already has 20 transactions
-			senderTransactions.poll();
+		addRecentTransaction(transaction.getSender().getId(), transaction);
+		addRecentTransaction(transaction.getRecipient().getId(), transaction);
+	}
+
+	/**
+	 * Adds the latest transactions of every account in a batch to its recent
+	 * transactions, oldest first.
+	 * 
+	 * @param batch summed transactions
+	 */
+	private void updateRecentTransactions(TransactionBatch batch) {
+		for (Map.Entry<Long, ArrayDeque<Transaction>> entry : batch.getRecentTransactions().entrySet()) {
+			for (Transaction transaction : entry.getValue()) {
+				addRecentTransaction(entry.getKey(), transaction);
+			}
 		}
-		senderTransactions.add(transaction);
+	}
 
-		// Repeats the logic above for the recipient
-		LinkedList<Transaction> recipientTransactions = accountTransactions
-				.computeIfAbsent(transaction.getRecipient().getId(), id -> new LinkedList<>());
-		if (recipientTransactions.size() >= 20) {
-			recipientTransactions.poll();
+	/**
+	 * Checks a transaction against the deduplicator, claiming its ID until
+	 * markProcessed() is called for it. Duplicates are counted by the
+	 * deduplicator rather than logged, see getDuplicateCount().
+	 * 
+	 * @param transaction transaction about to be processed
+	 * @return true if it has been processed before and should be skipped
+	 */
+	private boolean isDuplicate(Transaction transaction) {
+		TransactionDeduplicator current = deduplicator;
+		return current != null && !current.claim(transaction.getId());
+	}
+
+	/**
+	 * Tells the deduplicator whether the metrics of claimed transactions made it
+	 * to the metrics store - if so their IDs are recorded, if not they are
+	 * released so a retry is processed.
+	 * 
+	 * @param transactionIds IDs of the transactions
+	 * @param written        whether their metrics were written
+	 */
+	private void markProcessed(List<Long> transactionIds, boolean written) {
+		TransactionDeduplicator current = deduplicator;
+		if (current == null)
+			return;
+
+		for (long id : transactionIds) {
+			if (written)
+				current.markSeen(id);
+			else
+				current.release(id);
+		}
+	}
+
+	private void addRecentTransaction(long accountId, Transaction transaction) {
+		// Only one account's stripe is held at a time, so there is no lock ordering
+		// to worry about
+		ReentrantLock lock = accountLocks.get(accountId);
+		lock.lock();
+		try {
+			recentTransactions[accountLocks.indexFor(accountId)].add(accountId, transaction);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the executor for submitTransaction(), creating it on first use. The
+	 * build targets Java 8, so virtual threads are looked up reflectively.
+	 */
+	private synchronized ExecutorService transactionExecutor() {
+		if (transactionExecutor == null) {
+			try {
+				transactionExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+						.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// Before Java 21 - each blocked transaction ties up a platform thread
+				AtomicInteger threadCount = new AtomicInteger();
+				transactionExecutor = Executors.newCachedThreadPool(runnable -> {
+					Thread thread = new Thread(runnable, "transaction-worker-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
 		}
-		recipientTransactions.add(transaction);
+		return transactionExecutor;
 	}
 }
@@ -0,0 +1,21 @@
+package com.alternius.core;
+
+/**
+ * One stage of a TransactionPipeline. Each stage runs on its own thread and
+ * sees every event in sequence order, after every earlier stage has finished
+ * with it.
+ */
+public interface EventHandler {
+
+	/**
+	 * Handles one event. Events become available in batches - whatever the
+	 * previous stage has finished since this stage last caught up - so handlers
+	 * can save expensive work for the end of a batch.
+	 * 
+	 * @param event      event to handle
+	 * @param sequence   position of the event in the ring
+	 * @param endOfBatch whether this is the last event currently available
+	 * @throws Exception
+	 */
+	void onEvent(TransactionEvent event, long sequence, boolean endOfBatch) throws Exception;
+}
@@ -0,0 +1,199 @@
+package com.alternius.core;
+
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.alternius.models.Transaction;
+
+/**
+ * Aggregates transactions per day of Transaction.getDate() rather than as they
+ * arrive, in front of an EconomyAnalysis. Each day is a window summed in
+ * memory, and its metrics are written once, when the window is sealed.
+ *
+ * Windows are sealed by a watermark - the latest date seen so far, less the
+ * allowed lateness in days. Once the watermark has passed a day, its window and
+ * every earlier one are written, earliest first, so each day's balances are
+ * opened from the day before. A transaction for a day that has already been
+ * sealed is late: it is summed into a separate set of corrections, which are
+ * written through the metrics store's bulk load so the change carries forward
+ * to every later day's balance.
+ *
+ * A window that fails to write stays open, along with every later one, and is
+ * written again by the next seal or flush. Corrections that fail are kept the
+ * same way. Either way their transactions stay claimed with the deduplicator
+ * meanwhile, and are only added to the recent transactions once written.
+ *
+ * Duplicates are skipped if the EconomyAnalysis has a deduplicator. Nothing
+ * else should write metrics for the same groups through the EconomyAnalysis
+ * while windows are open, since those writes could reach later days first.
+ */
+public class EventTimeWindows {
+
+	// Corrections are written once this many late transactions have been summed,
+	// even if no window is sealed in the meantime
+	private static final int DEFAULT_CORRECTION_LIMIT = 10000;
+
+	private final EconomyAnalysis economyAnalysis;
+	private final int allowedLatenessDays;
+	private int correctionLimit = DEFAULT_CORRECTION_LIMIT;
+
+	// Open windows by day
+	private final TreeMap<LocalDate, TransactionBatch> windows = new TreeMap<>();
+	private TransactionBatch corrections = new TransactionBatch(RecentTransactions.DEFAULT_LIMIT);
+	private int pendingCorrections;
+
+	// Latest transaction date seen, and latest day whose window has been sealed
+	private LocalDate latestDate;
+	private LocalDate sealedThrough;
+
+	private long sealedWindowCount;
+	private long lateCount;
+
+	/**
+	 * Creates a set of windows writing to the given EconomyAnalysis.
+	 *
+	 * @param economyAnalysis     where sealed windows and corrections are written
+	 * @param allowedLatenessDays how many days behind the latest date seen a
+	 *                            transaction can be and still make its window,
+	 *                            e.g. 0 to seal each day as soon as a
+	 *                            transaction for the next day arrives
+	 */
+	public EventTimeWindows(EconomyAnalysis economyAnalysis, int allowedLatenessDays) {
+		if (allowedLatenessDays < 0)
+			throw new IllegalArgumentException("Allowed lateness can't be negative");
+
+		this.economyAnalysis = economyAnalysis;
+		this.allowedLatenessDays = allowedLatenessDays;
+	}
+
+	/**
+	 * Sets how many late transactions are summed before the corrections are
+	 * written, if no window is sealed first.
+	 *
+	 * @param correctionLimit number of late transactions
+	 */
+	public synchronized void setCorrectionLimit(int correctionLimit) {
+		this.correctionLimit = correctionLimit;
+	}
+
+	/**
+	 * Adds a transaction to the window for its day, or to the corrections if that
+	 * window has already been sealed. Seals any windows the watermark has passed.
+	 *
+	 * @param transaction transaction to be processed
+	 */
+	public synchronized void add(Transaction transaction) {
+		if (!economyAnalysis.admit(transaction))
+			return;
+
+		LocalDate date = transaction.getDate();
+		if (sealedThrough != null && !date.isAfter(sealedThrough)) {
+			corrections.add(transaction);
+			lateCount++;
+			if (++pendingCorrections >= correctionLimit)
+				writeCorrections();
+		} else {
+			windows.computeIfAbsent(date, day -> new TransactionBatch(RecentTransactions.DEFAULT_LIMIT))
+					.add(transaction);
+		}
+
+		if (latestDate == null || date.isAfter(latestDate)) {
+			latestDate = date;
+			// The watermark is latestDate - allowedLatenessDays, and every day
+			// before it can be sealed
+			sealThrough(latestDate.minusDays(allowedLatenessDays + 1));
+		}
+	}
+
+	/**
+	 * Seals every open window and writes any corrections, then flushes the
+	 * EconomyAnalysis. Transactions for those days that arrive afterwards are
+	 * treated as late, so call this at the end of an input or on shutdown rather
+	 * than periodically.
+	 */
+	public synchronized void flush() {
+		if (!windows.isEmpty())
+			sealThrough(windows.lastKey());
+		writeCorrections();
+		economyAnalysis.flush();
+	}
+
+	/**
+	 * Returns the current watermark. Windows for earlier days have been sealed.
+	 *
+	 * @return watermark, or null if no transactions have been added
+	 */
+	public synchronized LocalDate getWatermark() {
+		return latestDate == null ? null : latestDate.minusDays(allowedLatenessDays);
+	}
+
+	/**
+	 * Returns the number of windows still open in memory.
+	 *
+	 * @return open window count
+	 */
+	public synchronized int getOpenWindowCount() {
+		return windows.size();
+	}
+
+	/**
+	 * Returns the number of windows sealed and written so far.
+	 *
+	 * @return sealed window count
+	 */
+	public synchronized long getSealedWindowCount() {
+		return sealedWindowCount;
+	}
+
+	/**
+	 * Returns the number of transactions that arrived after their window was
+	 * sealed and went through the corrections.
+	 *
+	 * @return late transaction count
+	 */
+	public synchronized long getLateCount() {
+		return lateCount;
+	}
+
+	/**
+	 * Writes every open window up to and including the given day, earliest first,
+	 * then any corrections. Each window is only removed once written. If one
+	 * fails, it and every later window stay open for the next call, and a
+	 * RuntimeException goes on to the caller.
+	 */
+	private void sealThrough(LocalDate through) {
+		if (sealedThrough != null && !through.isAfter(sealedThrough))
+			return;
+
+		Iterator<Map.Entry<LocalDate, TransactionBatch>> sealed = windows.headMap(through, true).entrySet()
+				.iterator();
+		while (sealed.hasNext()) {
+			Map.Entry<LocalDate, TransactionBatch> window = sealed.next();
+			if (!economyAnalysis.applyMetrics(window.getValue()))
+				return;
+			sealed.remove();
+			sealedWindowCount++;
+			// Anything for this day from now on is late
+			sealedThrough = window.getKey();
+		}
+		sealedThrough = through;
+
+		writeCorrections();
+	}
+
+	/**
+	 * Writes the corrections summed so far. If that fails they are kept, and
+	 * later late transactions added to them, for the next call.
+	 */
+	private void writeCorrections() {
+		if (pendingCorrections == 0)
+			return;
+
+		if (!economyAnalysis.applyCorrections(corrections))
+			return;
+		corrections = new TransactionBatch(RecentTransactions.DEFAULT_LIMIT);
+		pendingCorrections = 0;
+	}
+}
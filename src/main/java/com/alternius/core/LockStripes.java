@@ -0,0 +1,53 @@
+package com.alternius.core;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared out between IDs by hashing, so state can be
+ * locked per group or account without a lock object for every ID. Two IDs may
+ * share a stripe, which only costs some extra contention.
+ *
+ * ReentrantLocks rather than synchronized blocks, since a virtual thread that
+ * blocks inside a synchronized block pins its carrier thread.
+ */
+class LockStripes {
+
+	private final ReentrantLock[] locks;
+
+	/**
+	 * Creates a set of stripes.
+	 *
+	 * @param count number of stripes, must be a power of two
+	 */
+	LockStripes(int count) {
+		if (count < 1 || Integer.bitCount(count) != 1)
+			throw new IllegalArgumentException("Stripe count must be a power of two");
+
+		locks = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Returns the index of the stripe guarding an ID.
+	 *
+	 * @param id group or account ID
+	 * @return stripe index
+	 */
+	int indexFor(long id) {
+		// Spread the bits, since IDs are often sequential
+		long hash = id * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 32) & (locks.length - 1);
+	}
+
+	/**
+	 * Returns the lock guarding an ID.
+	 *
+	 * @param id group or account ID
+	 * @return ReentrantLock
+	 */
+	ReentrantLock get(long id) {
+		return locks[indexFor(id)];
+	}
+}
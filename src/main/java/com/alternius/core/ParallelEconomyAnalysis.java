@@ -0,0 +1,216 @@
+package com.alternius.core;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.alternius.models.Transaction;
+import com.alternius.store.GroupBalanceKey;
+import com.alternius.store.GroupTransferKey;
+import com.alternius.store.MetricsStore;
+
+/**
+ * Processes transactions on several worker threads ("shards") instead of the
+ * caller's thread.
+ *
+ * Every group pair and every account is owned by exactly one shard, chosen by
+ * hashing its IDs. A transaction's group pair totals are aggregated by the
+ * shard owning the pair, and its sender's and recipient's recent transactions
+ * are updated by the shards owning those accounts. Since only the owning
+ * thread touches each piece of state, the shards need no locks.
+ *
+ * A group's balance is changed by transactions with every other group, so it
+ * can't have a single owner. Each shard keeps balance deltas for the pairs it
+ * owns, and a merge step periodically collects the totals from every shard,
+ * adds up the deltas per group and day, and writes everything to the metrics
+ * store. Metrics in the store therefore lag by up to the merge interval.
+ */
+public class ParallelEconomyAnalysis {
+
+	private static final long DEFAULT_MERGE_INTERVAL_MILLIS = 1000;
+
+	private final MetricsStore metricsStore;
+	private final Shard[] shards;
+
+	// Merged totals not yet written to the store, kept so a failed write can be
+	// retried on the next merge. Only touched while holding mergeLock.
+	private final Object mergeLock = new Object();
+	private final Map<GroupTransferKey, long[]> pendingTransfers = new HashMap<>();
+	private final Map<GroupBalanceKey, long[]> pendingBalances = new HashMap<>();
+
+	private final ScheduledExecutorService merger;
+
+	/**
+	 * Creates an engine with one shard per available processor.
+	 *
+	 * @param metricsStore where calculated metrics should be stored
+	 */
+	public ParallelEconomyAnalysis(MetricsStore metricsStore) {
+		this(metricsStore, Runtime.getRuntime().availableProcessors(), DEFAULT_MERGE_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Creates an engine.
+	 *
+	 * @param metricsStore        where calculated metrics should be stored
+	 * @param shardCount          number of worker threads
+	 * @param mergeIntervalMillis how often shard totals are merged and written
+	 */
+	public ParallelEconomyAnalysis(MetricsStore metricsStore, int shardCount, long mergeIntervalMillis) {
+		if (shardCount < 1)
+			throw new IllegalArgumentException("Shard count must be at least 1");
+
+		this.metricsStore = metricsStore;
+		shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i);
+		}
+
+		merger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "economy-merge");
+			thread.setDaemon(true);
+			return thread;
+		});
+		merger.scheduleWithFixedDelay(() -> {
+			try {
+				merge();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}, mergeIntervalMillis, mergeIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hands a transaction to the shards that own its group pair and accounts.
+	 * Returns once it has been queued, waiting while a shard's ring is full.
+	 *
+	 * @param transaction transaction to be processed
+	 */
+	public void processTransaction(Transaction transaction) {
+		pairShard(transaction.getSender().getGroupId(), transaction.getRecipient().getGroupId())
+				.aggregate(transaction);
+		accountShard(transaction.getSender().getId()).addRecent(transaction.getSender().getId(), transaction);
+		accountShard(transaction.getRecipient().getId()).addRecent(transaction.getRecipient().getId(),
+				transaction);
+	}
+
+	/**
+	 * Returns the most recent transactions sent or received by an account, oldest
+	 * first, including every transaction already passed to processTransaction().
+	 *
+	 * @param accountId ID of the account
+	 * @return list of up to 20 transactions
+	 */
+	public List<Transaction> getRecentTransactions(long accountId) {
+		try {
+			return accountShard(accountId).getRecent(accountId).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new ArrayList<>();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Merges and writes every transaction processed so far, then flushes the
+	 * metrics store.
+	 */
+	public void flush() {
+		try {
+			merge();
+			metricsStore.flush();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the scheduled merge, flushes, then stops the shards. Recent
+	 * transactions can still be read afterwards.
+	 */
+	public void close() {
+		merger.shutdown();
+		try {
+			merger.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		for (Shard shard : shards) {
+			shard.stop();
+		}
+	}
+
+	/**
+	 * Collects the totals from every shard, combines balance deltas per group and
+	 * day, and writes them to the metrics store. Balances are written in date
+	 * order so each new day is opened from the one before it.
+	 *
+	 * @throws SQLException if a write fails, in which case everything not yet
+	 *                      written is kept for the next merge
+	 */
+	private void merge() throws SQLException {
+		synchronized (mergeLock) {
+			List<CompletableFuture<Shard.Totals>> drained = new ArrayList<>(shards.length);
+			for (Shard shard : shards) {
+				drained.add(shard.drain());
+			}
+
+			// Once asked, a shard hands its totals over, so always wait for them or
+			// the totals would be lost
+			for (CompletableFuture<Shard.Totals> future : drained) {
+				Shard.Totals totals;
+				try {
+					totals = future.join();
+				} catch (CompletionException e) {
+					// Carry on with the other shards' totals
+					e.printStackTrace();
+					continue;
+				}
+				for (Map.Entry<GroupTransferKey, long[]> entry : totals.transfers.entrySet()) {
+					long[] pairTotals = pendingTransfers.computeIfAbsent(entry.getKey(), key -> new long[2]);
+					pairTotals[0] += entry.getValue()[0];
+					pairTotals[1] += entry.getValue()[1];
+				}
+				for (Map.Entry<GroupBalanceKey, long[]> entry : totals.balanceDeltas.entrySet()) {
+					pendingBalances.computeIfAbsent(entry.getKey(), key -> new long[1])[0] += entry.getValue()[0];
+				}
+			}
+
+			Iterator<Map.Entry<GroupTransferKey, long[]>> transfers = pendingTransfers.entrySet().iterator();
+			while (transfers.hasNext()) {
+				Map.Entry<GroupTransferKey, long[]> entry = transfers.next();
+				GroupTransferKey key = entry.getKey();
+				metricsStore.addGroupTransfer(key.getDate(), key.getOriginGroupId(), key.getDestinationGroupId(),
+						entry.getValue()[0], entry.getValue()[1]);
+				transfers.remove();
+			}
+
+			List<GroupBalanceKey> balanceKeys = new ArrayList<>(pendingBalances.keySet());
+			balanceKeys.sort(Comparator.comparing(GroupBalanceKey::getDate));
+			for (GroupBalanceKey key : balanceKeys) {
+				metricsStore.addGroupBalance(key.getGroupId(), key.getDate(), pendingBalances.get(key)[0]);
+				pendingBalances.remove(key);
+			}
+		}
+	}
+
+	private Shard pairShard(long originGroupId, long destinationGroupId) {
+		return shards[Math.floorMod(Long.hashCode(originGroupId * 31 + destinationGroupId), shards.length)];
+	}
+
+	private Shard accountShard(long accountId) {
+		return shards[Math.floorMod(Long.hashCode(accountId), shards.length)];
+	}
+}
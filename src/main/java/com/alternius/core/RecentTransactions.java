@@ -0,0 +1,80 @@
+package com.alternius.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.alternius.models.Transaction;
+
+/**
+ * The most recent transactions for each account. Not thread-safe - each
+ * instance should have one owner.
+ */
+public class RecentTransactions {
+
+	public static final int DEFAULT_LIMIT = 20;
+
+	private final int limit;
+	private final Map<Long, LinkedList<Transaction>> accountTransactions = new HashMap<>();
+
+	/**
+	 * Keeps the 20 most recent transactions for each account.
+	 */
+	public RecentTransactions() {
+		this(DEFAULT_LIMIT);
+	}
+
+	/**
+	 * Keeps the given number of transactions for each account.
+	 *
+	 * @param limit number of transactions kept per account
+	 */
+	public RecentTransactions(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Adds a transaction to the sender's and the recipient's lists.
+	 *
+	 * @param transaction transaction to be added
+	 */
+	public void add(Transaction transaction) {
+		add(transaction.getSender().getId(), transaction);
+		add(transaction.getRecipient().getId(), transaction);
+	}
+
+	/**
+	 * Adds a transaction to one account's list, removing the oldest if the list
+	 * is full.
+	 *
+	 * @param accountId   ID of the account
+	 * @param transaction transaction to be added
+	 */
+	public void add(long accountId, Transaction transaction) {
+		// Fetches the transactions list for the account, or creates it and maps it to
+		// the account ID if it does not exist
+		LinkedList<Transaction> transactions = accountTransactions.computeIfAbsent(accountId,
+				id -> new LinkedList<>());
+		if (transactions.size() >= limit) {
+			// Remove the oldest transaction if the list is already full
+			transactions.poll();
+		}
+		transactions.add(transaction);
+	}
+
+	/**
+	 * Returns a copy of an account's recent transactions, oldest first.
+	 *
+	 * @param accountId ID of the account
+	 * @return list of transactions, empty if the account has none
+	 */
+	public List<Transaction> get(long accountId) {
+		LinkedList<Transaction> transactions = accountTransactions.get(accountId);
+		if (transactions == null)
+			return Collections.emptyList();
+		return new ArrayList<>(transactions);
+	}
+}
@@ -0,0 +1,176 @@
+package com.alternius.core;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.alternius.models.Transaction;
+import com.alternius.store.GroupBalanceKey;
+import com.alternius.store.GroupTransferKey;
+
+/**
+ * One worker of ParallelEconomyAnalysis. Owns the group pair totals and
+ * recent-transaction lists routed to it, and only ever touches them from its
+ * own thread, so none of its state needs locking. Other threads talk to it by
+ * publishing operations into its TransactionRingBuffer, which any number of
+ * threads can do without taking a lock or allocating a queue node.
+ */
+class Shard implements EventHandler {
+
+	// Must be a power of two
+	private static final int RING_SIZE = 16384;
+
+	/**
+	 * What the shard should do with a slot published into its ring.
+	 */
+	enum Operation {
+		AGGREGATE, ADD_RECENT, GET_RECENT, DRAIN
+	}
+
+	private final TransactionRingBuffer ring = new TransactionRingBuffer(RING_SIZE);
+	private final StageProcessor processor;
+	private volatile boolean running = true;
+	private volatile boolean stopped;
+
+	// Owned by the shard's thread. Totals index 0 is the sum of transfers, index
+	// 1 the number of transfers.
+	private Map<GroupTransferKey, long[]> transfers = new HashMap<>();
+	private Map<GroupBalanceKey, long[]> balanceDeltas = new HashMap<>();
+	private final RecentTransactions recentTransactions = new RecentTransactions();
+
+	/**
+	 * Creates a shard and starts its thread.
+	 *
+	 * @param index number of the shard, used to name its thread
+	 */
+	Shard(int index) {
+		processor = new StageProcessor(ring, this, null, "economy-shard-" + index);
+		ring.setGatingSequence(processor.getSequence());
+	}
+
+	/**
+	 * Queues a transaction's group pair totals and balance changes. Waits while
+	 * the shard's ring is full.
+	 *
+	 * @param transaction transaction to be aggregated
+	 */
+	void aggregate(Transaction transaction) {
+		publish(Operation.AGGREGATE, transaction, 0, null);
+	}
+
+	/**
+	 * Queues a transaction to be added to one account's recent transactions.
+	 * Waits while the shard's ring is full.
+	 *
+	 * @param accountId   ID of an account owned by this shard
+	 * @param transaction transaction to be added
+	 */
+	void addRecent(long accountId, Transaction transaction) {
+		publish(Operation.ADD_RECENT, transaction, accountId, null);
+	}
+
+	/**
+	 * Fetches an account's recent transactions once every operation queued
+	 * before it has run.
+	 *
+	 * @param accountId ID of an account owned by this shard
+	 * @return future completed with the transactions
+	 */
+	@SuppressWarnings("unchecked")
+	CompletableFuture<List<Transaction>> getRecent(long accountId) {
+		if (stopped) {
+			// Nothing else touches the lists any more
+			return CompletableFuture.completedFuture(recentTransactions.get(accountId));
+		}
+		CompletableFuture<Object> reply = new CompletableFuture<>();
+		publish(Operation.GET_RECENT, null, accountId, reply);
+		return reply.thenApply(recent -> (List<Transaction>) recent);
+	}
+
+	/**
+	 * Hands over the totals aggregated so far and starts again from empty, once
+	 * every operation queued before it has run.
+	 *
+	 * @return future completed with the totals
+	 */
+	CompletableFuture<Totals> drain() {
+		CompletableFuture<Object> reply = new CompletableFuture<>();
+		publish(Operation.DRAIN, null, 0, reply);
+		return reply.thenApply(totals -> (Totals) totals);
+	}
+
+	/**
+	 * Stops the shard once the operations already queued have run, and waits for
+	 * its thread to finish.
+	 */
+	void stop() {
+		running = false;
+		processor.stop();
+		stopped = true;
+	}
+
+	private void publish(Operation operation, Transaction transaction, long accountId,
+			CompletableFuture<Object> reply) {
+		if (!running)
+			throw new IllegalStateException("Shard has been stopped");
+
+		long sequence = ring.next();
+		TransactionEvent event = ring.get(sequence);
+		event.set(transaction);
+		event.setShardOperation(operation, accountId, reply);
+		ring.publish(sequence);
+	}
+
+	@Override
+	public void onEvent(TransactionEvent event, long sequence, boolean endOfBatch) {
+		Transaction transaction = event.getTransaction();
+		switch (event.getShardOperation()) {
+		case AGGREGATE:
+			long senderGroupId = transaction.getSender().getGroupId();
+			long recipientGroupId = transaction.getRecipient().getGroupId();
+			LocalDate date = transaction.getDate();
+			long amount = transaction.getAmount();
+
+			long[] pairTotals = transfers.computeIfAbsent(new GroupTransferKey(date, senderGroupId,
+					recipientGroupId), key -> new long[2]);
+			pairTotals[0] += amount;
+			pairTotals[1]++;
+
+			// The same groups' balances are also changed by other shards, so only
+			// deltas are kept here and combined when merging
+			balanceDeltas.computeIfAbsent(new GroupBalanceKey(senderGroupId, date), key -> new long[1])[0] -= amount;
+			balanceDeltas.computeIfAbsent(new GroupBalanceKey(recipientGroupId, date),
+					key -> new long[1])[0] += amount;
+			break;
+		case ADD_RECENT:
+			recentTransactions.add(event.getAccountId(), transaction);
+			break;
+		case GET_RECENT:
+			event.getReply().complete(recentTransactions.get(event.getAccountId()));
+			break;
+		case DRAIN:
+			Totals totals = new Totals(transfers, balanceDeltas);
+			transfers = new HashMap<>();
+			balanceDeltas = new HashMap<>();
+			event.getReply().complete(totals);
+			break;
+		}
+		// Don't keep the slot's transaction or reply reachable until it is reused
+		event.set(null);
+	}
+
+	/**
+	 * Totals drained from a shard.
+	 */
+	static class Totals {
+		final Map<GroupTransferKey, long[]> transfers;
+		final Map<GroupBalanceKey, long[]> balanceDeltas;
+
+		Totals(Map<GroupTransferKey, long[]> transfers, Map<GroupBalanceKey, long[]> balanceDeltas) {
+			this.transfers = transfers;
+			this.balanceDeltas = balanceDeltas;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.alternius.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs one EventHandler on its own thread, feeding it every event once the
+ * stage before it (or, for the first stage, the producers) has finished with
+ * it. An event the handler throws on is skipped, and if it carries a reply the
+ * reply is completed with the exception, so nobody waits on it forever.
+ */
+class StageProcessor implements Runnable {
+
+	private final TransactionRingBuffer ring;
+	private final EventHandler handler;
+	// Null for the first stage, which follows the producers instead
+	private final AtomicLong previousStage;
+	// Last sequence this stage has finished with
+	private final AtomicLong sequence = new AtomicLong(-1);
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a stage and starts its thread.
+	 *
+	 * @param ring          ring to read events from
+	 * @param handler       handler to run for each event
+	 * @param previousStage sequence of the stage before this one, or null for the
+	 *                      first stage
+	 * @param name          name for the stage's thread
+	 */
+	StageProcessor(TransactionRingBuffer ring, EventHandler handler, AtomicLong previousStage, String name) {
+		this.ring = ring;
+		this.handler = handler;
+		this.previousStage = previousStage;
+
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	AtomicLong getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns whether the stage is still taking events - it hasn't been stopped,
+	 * and its thread hasn't died.
+	 *
+	 * @return true if running
+	 */
+	boolean isRunning() {
+		return running && thread.isAlive();
+	}
+
+	/**
+	 * Stops the stage after the events available now, and waits for its thread.
+	 */
+	void stop() {
+		running = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		long next = sequence.get() + 1;
+		int idleSpins = 0;
+		while (true) {
+			long available = previousStage == null ? ring.getHighestPublished(next) : previousStage.get();
+			if (available < next) {
+				if (!running)
+					return;
+				// Spin briefly, then back off so an idle pipeline doesn't burn a core
+				if (++idleSpins < 100)
+					Thread.yield();
+				else
+					LockSupport.parkNanos(100000);
+				continue;
+			}
+			idleSpins = 0;
+
+			for (long current = next; current <= available; current++) {
+				TransactionEvent event = ring.get(current);
+				try {
+					handler.onEvent(event, current, current == available);
+				} catch (Exception e) {
+					// Don't let one bad event stop the pipeline
+					e.printStackTrace();
+					CompletableFuture<Object> reply = event.getReply();
+					if (reply != null)
+						reply.completeExceptionally(e);
+				}
+			}
+			sequence.set(available);
+			next = available + 1;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package com.alternius.core;
+
+/**
+ * What a SubmitQueue does with a transaction submitted while it is full.
+ */
+public enum SubmitPolicy {
+
+	/**
+	 * Wait for space however long it takes, slowing the caller to the speed
+	 * transactions are processed.
+	 */
+	BLOCK,
+
+	/**
+	 * Wait for space up to the queue's timeout, then reject the transaction.
+	 */
+	TIMED,
+
+	/**
+	 * Reject the transaction straight away.
+	 */
+	FAIL_FAST
+}
@@ -0,0 +1,316 @@
+package com.alternius.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import com.alternius.models.Transaction;
+
+/**
+ * Bounded queue of submitted transactions, worked through by a fixed number of
+ * threads. However fast transactions arrive, at most capacity of them wait in
+ * memory and at most one per worker is waiting on the database. What happens
+ * to a transaction submitted while the queue is full depends on the
+ * SubmitPolicy.
+ *
+ * Counts accepted and rejected transactions, and how long each waited - both
+ * the caller, for space in the queue, and the transaction, in the queue before
+ * a worker picked it up.
+ */
+public class SubmitQueue {
+
+	// How often an idle worker checks whether the queue has been shut down
+	private static final long POLL_MILLIS = 100;
+
+	private final BlockingQueue<QueuedTransaction> queue;
+	private final int capacity;
+	private final SubmitPolicy policy;
+	private final long timeoutMillis;
+	private final Consumer<Transaction> processor;
+	private final List<Thread> workers = new ArrayList<>();
+	private volatile boolean shutdown;
+	// Submitters hold the read lock from checking for shutdown until their
+	// transaction is queued, and shutdown() takes the write lock to set the flag,
+	// so once the flag is set nothing more can reach the queue behind the workers'
+	// backs
+	private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong submitWaitMicros = new AtomicLong();
+	private final AtomicLong maxSubmitWaitMicros = new AtomicLong();
+	private final AtomicLong queueWaitMicros = new AtomicLong();
+	private final AtomicLong maxQueueWaitMicros = new AtomicLong();
+
+	/**
+	 * Creates a queue and starts its workers.
+	 *
+	 * @param capacity      number of transactions that can wait in the queue
+	 * @param workerCount   number of threads processing transactions, e.g. the
+	 *                      size of the connection pool
+	 * @param policy        what to do when the queue is full
+	 * @param timeoutMillis how long to wait for space with SubmitPolicy.TIMED
+	 * @param processor     processes each transaction
+	 */
+	SubmitQueue(int capacity, int workerCount, SubmitPolicy policy, long timeoutMillis,
+			Consumer<Transaction> processor) {
+		if (capacity < 1 || workerCount < 1)
+			throw new IllegalArgumentException("Capacity and worker count must be at least 1");
+
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.capacity = capacity;
+		this.policy = policy;
+		this.timeoutMillis = timeoutMillis;
+		this.processor = processor;
+
+		for (int i = 1; i <= workerCount; i++) {
+			Thread worker = new Thread(this::work, "transaction-submit-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	/**
+	 * Queues a transaction to be processed, applying the policy if the queue is
+	 * full.
+	 *
+	 * @param transaction transaction to be processed
+	 * @return future completed once the transaction has been processed
+	 * @throws RejectedExecutionException if the transaction was not queued -
+	 *                                    the queue stayed full, the caller was
+	 *                                    interrupted while waiting, or the queue
+	 *                                    has been shut down
+	 */
+	CompletableFuture<Void> submit(Transaction transaction) {
+		shutdownLock.readLock().lock();
+		try {
+			return enqueue(transaction);
+		} finally {
+			shutdownLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting transactions, and waits for the workers to finish the ones
+	 * already queued.
+	 */
+	void shutdown() {
+		// Waits for submits already past the check, which the workers are still
+		// running to make room for
+		shutdownLock.writeLock().lock();
+		try {
+			shutdown = true;
+		} finally {
+			shutdownLock.writeLock().unlock();
+		}
+
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		// Nothing can be queued after the flag is set, so this only finds anything
+		// if a worker was interrupted
+		QueuedTransaction queued;
+		while ((queued = queue.poll()) != null) {
+			process(queued);
+		}
+	}
+
+	/**
+	 * Returns the number of transactions waiting in the queue.
+	 *
+	 * @return queue depth
+	 */
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of transactions that can wait in the queue.
+	 *
+	 * @return queue capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of transactions accepted into the queue so far.
+	 *
+	 * @return accepted count
+	 */
+	public long getAcceptedCount() {
+		return acceptedCount.get();
+	}
+
+	/**
+	 * Returns the number of transactions rejected so far.
+	 *
+	 * @return rejected count
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Returns the number of transactions processed so far, including any whose
+	 * processing threw.
+	 *
+	 * @return processed count
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * Returns the total time callers have spent waiting for space in the queue,
+	 * whether or not their transaction was accepted in the end.
+	 *
+	 * @return wait time in microseconds
+	 */
+	public long getSubmitWaitMicros() {
+		return submitWaitMicros.get();
+	}
+
+	/**
+	 * Returns the longest time a caller has waited for space in the queue.
+	 *
+	 * @return wait time in microseconds
+	 */
+	public long getMaxSubmitWaitMicros() {
+		return maxSubmitWaitMicros.get();
+	}
+
+	/**
+	 * Returns the total time transactions have spent between being submitted and
+	 * a worker picking them up.
+	 *
+	 * @return wait time in microseconds
+	 */
+	public long getQueueWaitMicros() {
+		return queueWaitMicros.get();
+	}
+
+	/**
+	 * Returns the longest time a transaction has spent between being submitted
+	 * and a worker picking it up.
+	 *
+	 * @return wait time in microseconds
+	 */
+	public long getMaxQueueWaitMicros() {
+		return maxQueueWaitMicros.get();
+	}
+
+	/**
+	 * Formats statistics into format of `depth/capacity | accepted | rejected |
+	 * submit wait | queue wait`, with average and max times in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		long accepted = acceptedCount.get();
+		long submitted = accepted + rejectedCount.get();
+		long processed = processedCount.get();
+		return String.format(
+				"%d/%d queued | %d accepted | %d rejected | submit wait avg %.3fms max %.3fms | queue wait avg %.3fms max %.3fms",
+				queue.size(), capacity, accepted, rejectedCount.get(),
+				submitted == 0 ? 0 : submitWaitMicros.get() / 1000.0 / submitted, maxSubmitWaitMicros.get() / 1000.0,
+				processed == 0 ? 0 : queueWaitMicros.get() / 1000.0 / processed, maxQueueWaitMicros.get() / 1000.0);
+	}
+
+	private CompletableFuture<Void> enqueue(Transaction transaction) {
+		if (shutdown) {
+			rejectedCount.incrementAndGet();
+			throw new RejectedExecutionException("Submit queue has been shut down");
+		}
+
+		QueuedTransaction queued = new QueuedTransaction(transaction);
+		boolean accepted;
+		try {
+			switch (policy) {
+			case BLOCK:
+				queue.put(queued);
+				accepted = true;
+				break;
+			case TIMED:
+				accepted = queue.offer(queued, timeoutMillis, TimeUnit.MILLISECONDS);
+				break;
+			default:
+				accepted = queue.offer(queued);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			recordWait(submitWaitMicros, maxSubmitWaitMicros, queued.submittedNanos);
+			rejectedCount.incrementAndGet();
+			throw new RejectedExecutionException("Interrupted waiting for space in submit queue");
+		}
+		recordWait(submitWaitMicros, maxSubmitWaitMicros, queued.submittedNanos);
+
+		if (!accepted) {
+			rejectedCount.incrementAndGet();
+			throw new RejectedExecutionException("Submit queue full, " + capacity + " transactions waiting");
+		}
+		acceptedCount.incrementAndGet();
+		return queued.future;
+	}
+
+	private void work() {
+		while (!shutdown || !queue.isEmpty()) {
+			QueuedTransaction queued;
+			try {
+				queued = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (queued != null)
+				process(queued);
+		}
+	}
+
+	private void process(QueuedTransaction queued) {
+		recordWait(queueWaitMicros, maxQueueWaitMicros, queued.submittedNanos);
+		try {
+			processor.accept(queued.transaction);
+			queued.future.complete(null);
+		} catch (RuntimeException e) {
+			queued.future.completeExceptionally(e);
+		} finally {
+			processedCount.incrementAndGet();
+		}
+	}
+
+	private static void recordWait(AtomicLong total, AtomicLong max, long startNanos) {
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		total.addAndGet(micros);
+
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros))
+				break;
+		}
+	}
+
+	private static class QueuedTransaction {
+		final Transaction transaction;
+		final long submittedNanos = System.nanoTime();
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		QueuedTransaction(Transaction transaction) {
+			this.transaction = transaction;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.alternius.core;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter of IDs seen recently, split into buckets by time so old IDs age
+ * out without the filter ever being rebuilt. IDs are added to the current
+ * bucket, and a lookup checks every bucket. When a bucket's time span is over,
+ * or it holds as many IDs as it was sized for, the oldest bucket is cleared and
+ * reused - so a burst shortens how long IDs are remembered rather than raising
+ * the false positive rate. Not thread-safe.
+ */
+class TimeBucketedBloomFilter {
+
+	private final long bucketMillis;
+	private final long[][] buckets;
+	private final int bitsPerBucket;
+	private final int hashCount;
+	private final long expectedPerBucket;
+
+	// Latest time span seen, i.e. time / bucketMillis
+	private long currentSpan = Long.MIN_VALUE;
+	// Bucket IDs are being added to, and how many have been added to it
+	private int current;
+	private long currentCount;
+
+	/**
+	 * Creates a filter sized for the given number of IDs per bucket.
+	 *
+	 * @param bucketCount         number of buckets, so IDs are remembered for
+	 *                            between bucketCount - 1 and bucketCount spans
+	 * @param bucketMillis        time span covered by each bucket
+	 * @param expectedPerBucket   number of IDs expected per span
+	 * @param falsePositiveRate   chance of a lookup wrongly matching any bucket
+	 */
+	TimeBucketedBloomFilter(int bucketCount, long bucketMillis, long expectedPerBucket, double falsePositiveRate) {
+		this.bucketMillis = bucketMillis;
+		this.expectedPerBucket = expectedPerBucket;
+		// A lookup can match in any bucket, so each gets its share of the rate
+		double bucketFalsePositiveRate = falsePositiveRate / bucketCount;
+
+		// Standard sizing: m = -n ln p / (ln 2)^2 bits and k = m / n ln 2 hashes
+		double bits = -expectedPerBucket * Math.log(bucketFalsePositiveRate) / (Math.log(2) * Math.log(2));
+		bitsPerBucket = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, Math.ceil(bits)));
+		hashCount = Math.max(1, (int) Math.round(bitsPerBucket / (double) expectedPerBucket * Math.log(2)));
+
+		buckets = new long[bucketCount][(bitsPerBucket + 63) / 64];
+	}
+
+	/**
+	 * Returns whether an ID may have been added in any bucket still remembered.
+	 *
+	 * @param id  ID to look up
+	 * @param now current time in milliseconds
+	 * @return false if the ID has definitely not been seen
+	 */
+	boolean mightContain(long id, long now) {
+		rotate(now);
+		long hash1 = mix(id);
+		long hash2 = mix(hash1);
+		for (long[] bits : buckets) {
+			if (contains(bits, hash1, hash2))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds an ID to the current bucket.
+	 *
+	 * @param id  ID to add
+	 * @param now current time in milliseconds
+	 */
+	void add(long id, long now) {
+		rotate(now);
+		if (currentCount >= expectedPerBucket)
+			advance();
+		currentCount++;
+
+		long[] bits = buckets[current];
+		long hash1 = mix(id);
+		long hash2 = mix(hash1);
+		for (int i = 0; i < hashCount; i++) {
+			int bit = bitIndex(hash1, hash2, i);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	private boolean contains(long[] bits, long hash1, long hash2) {
+		for (int i = 0; i < hashCount; i++) {
+			int bit = bitIndex(hash1, hash2, i);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Double hashing - the i-th hash is hash1 + i * hash2.
+	 */
+	private int bitIndex(long hash1, long hash2, int i) {
+		return (int) Math.floorMod(hash1 + i * hash2, (long) bitsPerBucket);
+	}
+
+	/**
+	 * Moves on one bucket for every time span that has passed since the last
+	 * call.
+	 */
+	private void rotate(long now) {
+		long span = Math.floorDiv(now, bucketMillis);
+		if (currentSpan == Long.MIN_VALUE) {
+			currentSpan = span;
+			return;
+		}
+		if (span <= currentSpan)
+			return;
+
+		long elapsed = Math.min(span - currentSpan, buckets.length);
+		for (long i = 0; i < elapsed; i++) {
+			advance();
+		}
+		currentSpan = span;
+	}
+
+	/**
+	 * Clears the oldest bucket and starts adding to it.
+	 */
+	private void advance() {
+		current = (current + 1) % buckets.length;
+		Arrays.fill(buckets[current], 0);
+		currentCount = 0;
+	}
+
+	/**
+	 * SplitMix64 finalizer, to spread IDs that are often sequential.
+	 */
+	private static long mix(long value) {
+		value += 0x9E3779B97F4A7C15L;
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+}
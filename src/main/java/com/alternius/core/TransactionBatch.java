@@ -0,0 +1,130 @@
+package com.alternius.core;
+
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
+import com.alternius.models.Transaction;
+import com.alternius.store.GroupBalanceKey;
+import com.alternius.store.GroupTransferKey;
+
+/**
+ * Everything a set of transactions changes, summed in memory so each group
+ * pair and day, group and day, and account only has to be written once. Not
+ * thread-safe.
+ */
+class TransactionBatch {
+
+	private final int recentLimit;
+
+	// Index 0 is the sum of transfers, index 1 the number of transfers
+	private final Map<GroupTransferKey, long[]> groupTransfers = new HashMap<>();
+	private final Map<GroupBalanceKey, long[]> groupBalances = new HashMap<>();
+	// Only the last recentLimit transactions per account can survive the batch,
+	// so that's all that is kept
+	private final Map<Long, ArrayDeque<Transaction>> recentTransactions = new HashMap<>();
+	// So the deduplicator can record them once the batch has been written
+	private final List<Long> transactionIds = new ArrayList<>();
+
+	/**
+	 * Creates an empty batch.
+	 *
+	 * @param recentLimit number of recent transactions kept per account, or 0 to
+	 *                    keep none
+	 */
+	TransactionBatch(int recentLimit) {
+		this.recentLimit = recentLimit;
+	}
+
+	/**
+	 * Adds a transaction's changes to the batch.
+	 *
+	 * @param transaction transaction to be added
+	 */
+	void add(Transaction transaction) {
+		long senderGroupId = transaction.getSender().getGroupId();
+		long recipientGroupId = transaction.getRecipient().getGroupId();
+		LocalDate transactionDate = transaction.getDate();
+		long transactionAmount = transaction.getAmount();
+
+		long[] transfers = groupTransfers.computeIfAbsent(
+				new GroupTransferKey(transactionDate, senderGroupId, recipientGroupId), key -> new long[2]);
+		transfers[0] += transactionAmount;
+		transfers[1]++;
+
+		groupBalances.computeIfAbsent(new GroupBalanceKey(senderGroupId, transactionDate),
+				key -> new long[1])[0] -= transactionAmount;
+		groupBalances.computeIfAbsent(new GroupBalanceKey(recipientGroupId, transactionDate),
+				key -> new long[1])[0] += transactionAmount;
+
+		transactionIds.add(transaction.getId());
+
+		addRecent(transaction.getSender().getId(), transaction);
+		addRecent(transaction.getRecipient().getId(), transaction);
+	}
+
+	/**
+	 * Returns the summed transfers, one per group pair and day.
+	 *
+	 * @return list of GroupTransfer
+	 */
+	List<GroupTransfer> getTransfers() {
+		List<GroupTransfer> transferTotals = new ArrayList<>(groupTransfers.size());
+		for (Map.Entry<GroupTransferKey, long[]> entry : groupTransfers.entrySet()) {
+			GroupTransferKey key = entry.getKey();
+			transferTotals.add(new GroupTransfer(key.getDate(), key.getOriginGroupId(), key.getDestinationGroupId(),
+					entry.getValue()[0], entry.getValue()[1]));
+		}
+		return transferTotals;
+	}
+
+	/**
+	 * Returns the net balance change per group and day, earliest day first.
+	 *
+	 * @return list of GroupBalance
+	 */
+	List<GroupBalance> getBalanceChanges() {
+		List<GroupBalance> balanceChanges = new ArrayList<>(groupBalances.size());
+		for (Map.Entry<GroupBalanceKey, long[]> entry : groupBalances.entrySet()) {
+			balanceChanges.add(
+					new GroupBalance(entry.getKey().getGroupId(), entry.getKey().getDate(), entry.getValue()[0]));
+		}
+		balanceChanges.sort(Comparator.comparing(GroupBalance::getDate));
+		return balanceChanges;
+	}
+
+	/**
+	 * Returns the last few transactions of every account in the batch, oldest
+	 * first.
+	 *
+	 * @return transactions keyed by account ID
+	 */
+	Map<Long, ArrayDeque<Transaction>> getRecentTransactions() {
+		return recentTransactions;
+	}
+
+	/**
+	 * Returns the ID of every transaction added to the batch.
+	 *
+	 * @return list of transaction IDs
+	 */
+	List<Long> getTransactionIds() {
+		return transactionIds;
+	}
+
+	private void addRecent(long accountId, Transaction transaction) {
+		if (recentLimit == 0)
+			return;
+		ArrayDeque<Transaction> transactions = recentTransactions.computeIfAbsent(accountId,
+				id -> new ArrayDeque<>());
+		if (transactions.size() >= recentLimit)
+			transactions.poll();
+		transactions.add(transaction);
+	}
+}
@@ -0,0 +1,260 @@
+package com.alternius.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognises transactions that have already been processed, by ID, so upstream
+ * retries aren't counted twice. Memory use is bounded however many IDs go
+ * through it, apart from IDs whose processing failed and was never retried.
+ *
+ * Checking and recording are separate steps. claim() is called when a
+ * transaction arrives, and turns it away if its ID has been processed or is
+ * being processed right now. markSeen() is called once its metrics have been
+ * handed to the metrics store, or release() if that failed, so a retry of a
+ * failed transaction is let through rather than taken for a duplicate.
+ *
+ * Every recorded ID goes into a time-bucketed Bloom filter and an exact set of
+ * the most recent IDs. Most new IDs are cleared by the Bloom filter alone. When
+ * the filter matches, the exact set decides while it still holds every ID ever
+ * recorded. Once it has started evicting, an ID the filter matches that is no
+ * longer in the set is turned away as a probable duplicate and counted by
+ * getProbableDuplicateCount(). Some of those are new IDs the filter matched
+ * by chance, at no more than the configured false positive rate.
+ *
+ * Optionally a watermark is persisted to a file, and IDs at or below the
+ * watermark loaded at startup are treated as duplicates, so a restart doesn't
+ * reopen the window. The watermark only moves forward when the caller confirms
+ * a flush with advanceWatermark(), and never past an ID that was claimed but
+ * not recorded, so an ID above it that never reached the database can still be
+ * processed after a restart. This only makes sense if transaction IDs increase
+ * over time.
+ */
+public class TransactionDeduplicator {
+
+	private static final int DEFAULT_EXACT_CAPACITY = 100000;
+	private static final int DEFAULT_BUCKET_COUNT = 24;
+	private static final long DEFAULT_BUCKET_MILLIS = 60 * 60 * 1000;
+	private static final long DEFAULT_EXPECTED_PER_BUCKET = 100000;
+	// Chance of a new ID being turned away as a duplicate once the exact set has
+	// started evicting
+	private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.000001;
+
+	private final TimeBucketedBloomFilter bloomFilter;
+	// Most recent IDs, oldest first, evicted once over capacity
+	private final Map<Long, Boolean> recentIds;
+	// Until the exact set first evicts an ID, it holds every ID ever added, so a
+	// Bloom filter match that isn't in it is a false positive
+	private boolean evicted;
+	// IDs claimed but not yet recorded - true while being processed, false once
+	// processing has failed. The lowest one caps the watermark.
+	private final TreeMap<Long, Boolean> unrecorded = new TreeMap<>();
+
+	private final Path watermarkPath;
+	// IDs at or below this were processed before the last restart
+	private final long startupWatermark;
+	// Highest ID recorded, and the watermark last confirmed by a flush
+	private long highestId;
+	private long watermark;
+
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong probableDuplicateCount = new AtomicLong();
+
+	/**
+	 * Creates a deduplicator with default sizing - exact set of the last 100000
+	 * IDs, Bloom filter remembering about a day at up to 100000 IDs an hour with
+	 * a one in a million false positive rate - and no watermark. Above 100000 IDs
+	 * an hour, IDs are remembered for less time.
+	 */
+	public TransactionDeduplicator() {
+		this(DEFAULT_EXACT_CAPACITY, DEFAULT_BUCKET_COUNT, DEFAULT_BUCKET_MILLIS, DEFAULT_EXPECTED_PER_BUCKET,
+				DEFAULT_FALSE_POSITIVE_RATE);
+	}
+
+	/**
+	 * Creates a deduplicator with no watermark.
+	 *
+	 * @param exactCapacity     number of recent IDs kept exactly
+	 * @param bucketCount       number of Bloom filter buckets
+	 * @param bucketMillis      time span covered by each bucket
+	 * @param expectedPerBucket number of IDs expected per bucket
+	 * @param falsePositiveRate Bloom filter false positive rate across all
+	 *                          buckets
+	 */
+	public TransactionDeduplicator(int exactCapacity, int bucketCount, long bucketMillis, long expectedPerBucket,
+			double falsePositiveRate) {
+		this(exactCapacity, bucketCount, bucketMillis, expectedPerBucket, falsePositiveRate, null, Long.MIN_VALUE);
+	}
+
+	private TransactionDeduplicator(int exactCapacity, int bucketCount, long bucketMillis, long expectedPerBucket,
+			double falsePositiveRate, Path watermarkPath, long startupWatermark) {
+		this.bloomFilter = new TimeBucketedBloomFilter(bucketCount, bucketMillis, expectedPerBucket,
+				falsePositiveRate);
+		this.recentIds = new LinkedHashMap<Long, Boolean>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+				if (size() <= exactCapacity)
+					return false;
+				evicted = true;
+				return true;
+			}
+		};
+		this.watermarkPath = watermarkPath;
+		this.startupWatermark = startupWatermark;
+		this.highestId = startupWatermark;
+		this.watermark = startupWatermark;
+	}
+
+	/**
+	 * Creates a deduplicator with default sizing that persists its watermark to
+	 * the given file, loading the watermark left by the previous run if there is
+	 * one.
+	 *
+	 * @param watermarkPath file to keep the watermark in
+	 * @return TransactionDeduplicator
+	 * @throws IOException if an existing watermark file cannot be read
+	 */
+	public static TransactionDeduplicator withWatermark(Path watermarkPath) throws IOException {
+		long watermark = Long.MIN_VALUE;
+		if (Files.exists(watermarkPath)) {
+			String saved = new String(Files.readAllBytes(watermarkPath), StandardCharsets.UTF_8).trim();
+			if (!saved.isEmpty())
+				watermark = Long.parseLong(saved);
+		}
+		return new TransactionDeduplicator(DEFAULT_EXACT_CAPACITY, DEFAULT_BUCKET_COUNT, DEFAULT_BUCKET_MILLIS,
+				DEFAULT_EXPECTED_PER_BUCKET, DEFAULT_FALSE_POSITIVE_RATE, watermarkPath, watermark);
+	}
+
+	/**
+	 * Checks whether an ID is new, and if so holds it as being processed until
+	 * markSeen() or release() is called for it.
+	 *
+	 * @param id transaction ID
+	 * @return true if the ID is new and the transaction should be processed,
+	 *         false if it is a duplicate, probably a duplicate, or already being
+	 *         processed
+	 */
+	public synchronized boolean claim(long id) {
+		if (id <= startupWatermark || recentIds.containsKey(id) || Boolean.TRUE.equals(unrecorded.get(id))) {
+			duplicateCount.incrementAndGet();
+			return false;
+		}
+
+		// Only the Bloom filter remembers this ID, if it was ever seen at all
+		if (evicted && bloomFilter.mightContain(id, System.currentTimeMillis())) {
+			probableDuplicateCount.incrementAndGet();
+			return false;
+		}
+
+		unrecorded.put(id, Boolean.TRUE);
+		return true;
+	}
+
+	/**
+	 * Records an ID as processed, once its transaction's metrics have been handed
+	 * to the metrics store.
+	 *
+	 * @param id transaction ID
+	 */
+	public synchronized void markSeen(long id) {
+		unrecorded.remove(id);
+		bloomFilter.add(id, System.currentTimeMillis());
+		recentIds.put(id, Boolean.TRUE);
+		if (id > highestId)
+			highestId = id;
+	}
+
+	/**
+	 * Gives up on a claimed ID whose metrics failed to write, so it can be
+	 * claimed again by a retry. Until then it holds the watermark below it.
+	 *
+	 * @param id transaction ID
+	 */
+	public synchronized void release(long id) {
+		if (unrecorded.containsKey(id))
+			unrecorded.put(id, Boolean.FALSE);
+	}
+
+	/**
+	 * Returns the watermark the IDs recorded so far would allow - the highest
+	 * recorded ID, kept below any ID claimed but not recorded. Take this before
+	 * flushing the metrics store, and pass it to advanceWatermark() once the
+	 * flush has succeeded.
+	 *
+	 * @return watermark candidate
+	 */
+	public synchronized long checkpoint() {
+		if (unrecorded.isEmpty())
+			return highestId;
+		return Math.min(highestId, unrecorded.firstKey() - 1);
+	}
+
+	/**
+	 * Moves the watermark up to a checkpoint whose IDs have been flushed, and
+	 * writes it to the watermark file if there is one.
+	 *
+	 * @param checkpoint value returned by checkpoint() before the flush
+	 */
+	public synchronized void advanceWatermark(long checkpoint) {
+		if (checkpoint <= watermark)
+			return;
+
+		watermark = checkpoint;
+		saveWatermarkQuietly();
+	}
+
+	/**
+	 * Writes the watermark file now. Does nothing without a watermark file.
+	 * advanceWatermark() already writes it whenever it moves.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void saveWatermark() throws IOException {
+		if (watermarkPath == null || watermark == Long.MIN_VALUE)
+			return;
+
+		// Write to a temporary file and move it into place, so a crash part way
+		// through never leaves a truncated watermark
+		Path temporary = watermarkPath.resolveSibling(watermarkPath.getFileName() + ".tmp");
+		Files.write(temporary, Long.toString(watermark).getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary, watermarkPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns the number of duplicates recognised so far.
+	 *
+	 * @return duplicate count
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/**
+	 * Returns the number of IDs turned away because the Bloom filter matched them
+	 * after they had left the exact set, or were never in it. Most are old
+	 * retries. The rest were new transactions lost to a false positive, at no
+	 * more than the configured rate.
+	 *
+	 * @return probable duplicate count
+	 */
+	public long getProbableDuplicateCount() {
+		return probableDuplicateCount.get();
+	}
+
+	private void saveWatermarkQuietly() {
+		try {
+			saveWatermark();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
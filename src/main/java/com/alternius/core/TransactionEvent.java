@@ -0,0 +1,91 @@
+package com.alternius.core;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.alternius.models.Transaction;
+
+/**
+ * A slot in a TransactionRingBuffer. Slots are allocated once when the buffer
+ * is created and reused - producers fill one in place for each transaction
+ * rather than allocating a queue node, and each pipeline stage reads it and
+ * may record its outcome on it for the stages after it.
+ */
+public class TransactionEvent {
+
+	private Transaction transaction;
+	private boolean duplicate;
+
+	// Set by the aggregation stage on the last event of each batch it processes,
+	// so the batch's totals travel down the ring in order with the events
+	private TransactionPipeline.AggregatedBatch batch;
+
+	// Set when the ring feeds a Shard rather than a pipeline: what the shard
+	// should do with the slot, and where any answer goes
+	private Shard.Operation shardOperation;
+	private long accountId;
+	private CompletableFuture<Object> reply;
+
+	/**
+	 * Fills the slot with a new transaction, clearing every other field left by
+	 * the previous one.
+	 * 
+	 * @param transaction transaction to be processed
+	 */
+	public void set(Transaction transaction) {
+		this.transaction = transaction;
+		this.duplicate = false;
+		this.batch = null;
+		this.shardOperation = null;
+		this.accountId = 0;
+		this.reply = null;
+	}
+
+	/**
+	 * Returns the transaction in the slot.
+	 * 
+	 * @return Transaction
+	 */
+	public Transaction getTransaction() {
+		return transaction;
+	}
+
+	/**
+	 * Returns whether an earlier stage found the transaction to be a duplicate.
+	 * Later stages skip duplicates.
+	 * 
+	 * @return true if already processed
+	 */
+	public boolean isDuplicate() {
+		return duplicate;
+	}
+
+	void setDuplicate(boolean duplicate) {
+		this.duplicate = duplicate;
+	}
+
+	TransactionPipeline.AggregatedBatch getBatch() {
+		return batch;
+	}
+
+	void setBatch(TransactionPipeline.AggregatedBatch batch) {
+		this.batch = batch;
+	}
+
+	void setShardOperation(Shard.Operation shardOperation, long accountId, CompletableFuture<Object> reply) {
+		this.shardOperation = shardOperation;
+		this.accountId = accountId;
+		this.reply = reply;
+	}
+
+	Shard.Operation getShardOperation() {
+		return shardOperation;
+	}
+
+	long getAccountId() {
+		return accountId;
+	}
+
+	CompletableFuture<Object> getReply() {
+		return reply;
+	}
+}
@@ -0,0 +1,364 @@
+package com.alternius.core;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.alternius.models.Transaction;
+import com.alternius.store.GroupBalanceKey;
+import com.alternius.store.GroupTransferKey;
+import com.alternius.store.MetricsStore;
+
+/**
+ * Staged ingestion in front of the metrics store, built on a
+ * TransactionRingBuffer. Producers fill pre-allocated slots in place, and four
+ * stages, each on its own thread, process every transaction in order:
+ *
+ * 1. dedupe - skips transactions whose ID has been seen before, using a
+ * TransactionDeduplicator. IDs are only recorded once their batch is written.
+ * 2. group aggregation - sums group pair totals and group balance changes
+ * (what updateGroupTransfers() and updateTotalPerGroup() do in
+ * EconomyAnalysis) over each batch of events
+ * 3. recent transactions - as updateRecentTransactions()
+ * 4. persistence - writes each batch's totals to the metrics store
+ *
+ * Stages work through whatever is available in one go, so when producers get
+ * ahead the batches grow and the database stage writes fewer, larger sets of
+ * totals. Memory use is bounded by the ring size.
+ */
+public class TransactionPipeline {
+
+	private static final int DEFAULT_RING_SIZE = 8192;
+
+	private final TransactionRingBuffer ring;
+	private final MetricsStore metricsStore;
+	private final RecentTransactions recentTransactions = new RecentTransactions();
+	// A ReentrantLock rather than synchronized, so readers on virtual threads
+	// don't pin their carrier threads while they wait for it
+	private final ReentrantLock recentLock = new ReentrantLock();
+	private final List<StageProcessor> stages = new ArrayList<>();
+	private final PersistenceHandler persistence = new PersistenceHandler();
+	private final TransactionDeduplicator deduplicator;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a pipeline with a ring of 8192 slots and starts its stages.
+	 *
+	 * @param metricsStore where calculated metrics should be stored
+	 */
+	public TransactionPipeline(MetricsStore metricsStore) {
+		this(metricsStore, DEFAULT_RING_SIZE, new TransactionDeduplicator());
+	}
+
+	/**
+	 * Creates a pipeline with a default TransactionDeduplicator and starts its
+	 * stages.
+	 *
+	 * @param metricsStore where calculated metrics should be stored
+	 * @param ringSize     number of slots in the ring, must be a power of two
+	 */
+	public TransactionPipeline(MetricsStore metricsStore, int ringSize) {
+		this(metricsStore, ringSize, new TransactionDeduplicator());
+	}
+
+	/**
+	 * Creates a pipeline and starts its stages.
+	 *
+	 * @param metricsStore where calculated metrics should be stored
+	 * @param ringSize     number of slots in the ring, must be a power of two
+	 * @param deduplicator used by the dedupe stage to recognise transactions
+	 *                     that have been seen before
+	 */
+	public TransactionPipeline(MetricsStore metricsStore, int ringSize, TransactionDeduplicator deduplicator) {
+		this.ring = new TransactionRingBuffer(ringSize);
+		this.metricsStore = metricsStore;
+		this.deduplicator = deduplicator;
+
+		addStage(new DedupeHandler(deduplicator), "pipeline-dedupe");
+		addStage(new AggregationHandler(), "pipeline-aggregation");
+		addStage(new RecentTransactionsHandler(), "pipeline-recent-transactions");
+		addStage(persistence, "pipeline-persistence");
+		ring.setGatingSequence(stages.get(stages.size() - 1).getSequence());
+	}
+
+	/**
+	 * Publishes a transaction to the pipeline, waiting while the ring is full.
+	 * Safe to call from several threads.
+	 *
+	 * @param transaction transaction to be processed
+	 * @throws IllegalStateException if the pipeline has been closed
+	 */
+	public void publish(Transaction transaction) {
+		if (closed)
+			throw new IllegalStateException("Pipeline has been closed");
+
+		long sequence = ring.next();
+		try {
+			ring.get(sequence).set(transaction);
+		} finally {
+			ring.publish(sequence);
+		}
+	}
+
+	/**
+	 * Returns the ring, for producers that want to claim and fill slots
+	 * themselves.
+	 *
+	 * @return TransactionRingBuffer
+	 */
+	public TransactionRingBuffer getRingBuffer() {
+		return ring;
+	}
+
+	/**
+	 * Returns the most recent transactions sent or received by an account, oldest
+	 * first.
+	 *
+	 * @param accountId ID of the account
+	 * @return list of up to 20 transactions
+	 */
+	public List<Transaction> getRecentTransactions(long accountId) {
+		recentLock.lock();
+		try {
+			return recentTransactions.get(accountId);
+		} finally {
+			recentLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every transaction published so far has been through the whole
+	 * pipeline, retries any batches that failed to write, then flushes the
+	 * metrics store and moves the deduplicator's watermark up to what it has
+	 * flushed. Batches that still can't be written are reported and kept for the
+	 * next flush.
+	 * 
+	 * @throws IllegalStateException if a stage has stopped, e.g. because the
+	 *                               pipeline has been closed, with transactions
+	 *                               still to go through it
+	 */
+	public void flush() {
+		long target = ring.getClaimed();
+		StageProcessor last = stages.get(stages.size() - 1);
+		while (last.getSequence().get() < target) {
+			// Nothing else would move the last stage on
+			for (StageProcessor stage : stages) {
+				if (!stage.isRunning() && last.getSequence().get() < target)
+					throw new IllegalStateException("Pipeline stage stopped with transactions still to process");
+			}
+			LockSupport.parkNanos(100000);
+		}
+
+		try {
+			persistence.writePending();
+		} catch (SQLException e) {
+			System.err.println(getPendingBatchCount() + " batches of metrics could not be written");
+			e.printStackTrace();
+			return;
+		}
+
+		long checkpoint = deduplicator.checkpoint();
+		try {
+			metricsStore.flush();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return;
+		}
+		deduplicator.advanceWatermark(checkpoint);
+	}
+
+	/**
+	 * Flushes, then stops every stage. Nothing may be published afterwards. Any
+	 * batches that still couldn't be written are lost, which is reported.
+	 */
+	public void close() {
+		closed = true;
+		flush();
+		for (StageProcessor stage : stages) {
+			stage.stop();
+		}
+
+		int unwritten = getPendingBatchCount();
+		if (unwritten > 0)
+			System.err.println("Pipeline closed with " + unwritten + " batches of metrics unwritten");
+	}
+
+	/**
+	 * Returns the number of batches whose totals failed to write and are waiting
+	 * to be retried.
+	 *
+	 * @return pending batch count
+	 */
+	public int getPendingBatchCount() {
+		return persistence.getPendingCount();
+	}
+
+	private void addStage(EventHandler handler, String name) {
+		StageProcessor previous = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+		stages.add(new StageProcessor(ring, handler, previous == null ? null : previous.getSequence(), name));
+	}
+
+	/**
+	 * Group pair totals and group balance changes summed over a batch of events.
+	 * Index 0 of transfer totals is the sum of transfers, index 1 the number of
+	 * transfers.
+	 */
+	static class AggregatedBatch {
+		final Map<GroupTransferKey, long[]> transfers = new HashMap<>();
+		final Map<GroupBalanceKey, long[]> balances = new HashMap<>();
+		// Recorded with the deduplicator once the totals are written
+		final List<Long> transactionIds = new ArrayList<>();
+
+		boolean isEmpty() {
+			return transfers.isEmpty() && balances.isEmpty();
+		}
+	}
+
+	/**
+	 * Marks transactions the deduplicator has seen before, or that are still on
+	 * their way through.
+	 */
+	private static class DedupeHandler implements EventHandler {
+
+		private final TransactionDeduplicator deduplicator;
+
+		DedupeHandler(TransactionDeduplicator deduplicator) {
+			this.deduplicator = deduplicator;
+		}
+
+		@Override
+		public void onEvent(TransactionEvent event, long sequence, boolean endOfBatch) {
+			if (!deduplicator.claim(event.getTransaction().getId()))
+				event.setDuplicate(true);
+		}
+	}
+
+	/**
+	 * Sums each batch and attaches the totals to the batch's last event.
+	 */
+	private static class AggregationHandler implements EventHandler {
+
+		private AggregatedBatch batch = new AggregatedBatch();
+
+		@Override
+		public void onEvent(TransactionEvent event, long sequence, boolean endOfBatch) {
+			if (!event.isDuplicate()) {
+				Transaction transaction = event.getTransaction();
+				long senderGroupId = transaction.getSender().getGroupId();
+				long recipientGroupId = transaction.getRecipient().getGroupId();
+				long amount = transaction.getAmount();
+
+				long[] pairTotals = batch.transfers.computeIfAbsent(
+						new GroupTransferKey(transaction.getDate(), senderGroupId, recipientGroupId),
+						key -> new long[2]);
+				pairTotals[0] += amount;
+				pairTotals[1]++;
+				batch.transactionIds.add(transaction.getId());
+
+				batch.balances.computeIfAbsent(new GroupBalanceKey(senderGroupId, transaction.getDate()),
+						key -> new long[1])[0] -= amount;
+				batch.balances.computeIfAbsent(new GroupBalanceKey(recipientGroupId, transaction.getDate()),
+						key -> new long[1])[0] += amount;
+			}
+
+			if (endOfBatch && !batch.isEmpty()) {
+				event.setBatch(batch);
+				batch = new AggregatedBatch();
+			}
+		}
+	}
+
+	private class RecentTransactionsHandler implements EventHandler {
+
+		@Override
+		public void onEvent(TransactionEvent event, long sequence, boolean endOfBatch) {
+			if (event.isDuplicate())
+				return;
+			// Only contended when someone is reading
+			recentLock.lock();
+			try {
+				recentTransactions.add(event.getTransaction());
+			} finally {
+				recentLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes each batch's totals when it reaches the batch's last event, then
+	 * records its transaction IDs with the deduplicator. Batches that fail to
+	 * write are retried with the next one, and by flush(), and their IDs stay
+	 * claimed meanwhile.
+	 */
+	private class PersistenceHandler implements EventHandler {
+
+		// Touched by the stage's thread and by flush(), so only while holding it
+		private final List<AggregatedBatch> pending = new ArrayList<>();
+
+		@Override
+		public void onEvent(TransactionEvent event, long sequence, boolean endOfBatch) {
+			AggregatedBatch batch = event.getBatch();
+			if (batch == null)
+				return;
+			event.setBatch(null);
+
+			synchronized (pending) {
+				pending.add(batch);
+				try {
+					writePending();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Writes every pending batch, oldest first, stopping at the first that
+		 * fails.
+		 */
+		void writePending() throws SQLException {
+			synchronized (pending) {
+				while (!pending.isEmpty()) {
+					AggregatedBatch batch = pending.get(0);
+					write(batch);
+					pending.remove(0);
+					for (long id : batch.transactionIds) {
+						deduplicator.markSeen(id);
+					}
+				}
+			}
+		}
+
+		int getPendingCount() {
+			synchronized (pending) {
+				return pending.size();
+			}
+		}
+
+		/**
+		 * Writes a batch, removing each total once written so a failure part way
+		 * through doesn't write anything twice on retry. Balances go in date order
+		 * so each new day is opened from the one before it.
+		 */
+		private void write(AggregatedBatch batch) throws SQLException {
+			for (GroupTransferKey key : new ArrayList<>(batch.transfers.keySet())) {
+				long[] totals = batch.transfers.get(key);
+				metricsStore.addGroupTransfer(key.getDate(), key.getOriginGroupId(), key.getDestinationGroupId(),
+						totals[0], totals[1]);
+				batch.transfers.remove(key);
+			}
+
+			List<GroupBalanceKey> balanceKeys = new ArrayList<>(batch.balances.keySet());
+			balanceKeys.sort(Comparator.comparing(GroupBalanceKey::getDate));
+			for (GroupBalanceKey key : balanceKeys) {
+				metricsStore.addGroupBalance(key.getGroupId(), key.getDate(), batch.balances.get(key)[0]);
+				batch.balances.remove(key);
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.alternius.core;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-size ring of pre-allocated TransactionEvents shared by producers and
+ * the stages of a TransactionPipeline. Any number of threads may produce:
+ * claim a sequence with next(), fill the slot from get(), then publish(). A
+ * producer waits if it would overwrite a slot the last stage hasn't finished
+ * with, so memory use is bounded by the ring size.
+ */
+public class TransactionRingBuffer {
+
+	private final TransactionEvent[] events;
+	private final int mask;
+	private final int indexShift;
+
+	// Highest sequence claimed by a producer, published or not
+	private final AtomicLong claimed = new AtomicLong(-1);
+	// For each slot, which lap of the ring was last published into it, so
+	// consumers can tell when every sequence up to some point has been published
+	private final AtomicIntegerArray publishedLaps;
+
+	// Sequence of the last stage - producers can't get more than a lap ahead of it
+	private volatile AtomicLong gatingSequence = new AtomicLong(Long.MAX_VALUE);
+
+	/**
+	 * Creates a ring and fills it with empty events.
+	 *
+	 * @param size number of slots, must be a power of two
+	 */
+	public TransactionRingBuffer(int size) {
+		if (size < 1 || Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException("Ring size must be a power of two");
+
+		events = new TransactionEvent[size];
+		for (int i = 0; i < size; i++) {
+			events[i] = new TransactionEvent();
+		}
+		mask = size - 1;
+		indexShift = Integer.numberOfTrailingZeros(size);
+
+		publishedLaps = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++) {
+			publishedLaps.set(i, -1);
+		}
+	}
+
+	/**
+	 * Claims the next slot, waiting while the ring is full.
+	 *
+	 * @return sequence of the claimed slot
+	 */
+	public long next() {
+		long sequence = claimed.incrementAndGet();
+		long wrapPoint = sequence - events.length;
+		while (wrapPoint > gatingSequence.get()) {
+			LockSupport.parkNanos(1000);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Returns the event in a slot, to be filled by the producer that claimed it
+	 * or read by a stage.
+	 *
+	 * @param sequence sequence of the slot
+	 * @return TransactionEvent
+	 */
+	public TransactionEvent get(long sequence) {
+		return events[(int) sequence & mask];
+	}
+
+	/**
+	 * Makes a filled slot visible to the pipeline.
+	 *
+	 * @param sequence sequence returned by next()
+	 */
+	public void publish(long sequence) {
+		publishedLaps.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+	}
+
+	/**
+	 * Returns the number of slots in the ring.
+	 *
+	 * @return ring size
+	 */
+	public int getSize() {
+		return events.length;
+	}
+
+	/**
+	 * Returns the highest sequence claimed so far.
+	 *
+	 * @return sequence, -1 if nothing has been claimed
+	 */
+	long getClaimed() {
+		return claimed.get();
+	}
+
+	/**
+	 * Finds the highest sequence from the given one onwards up to which every
+	 * slot has been published. Producers can publish out of order, so a claimed
+	 * but unpublished slot holds back everything after it.
+	 *
+	 * @param from first sequence to check
+	 * @return highest published sequence, from - 1 if the first isn't published
+	 */
+	long getHighestPublished(long from) {
+		long available = claimed.get();
+		for (long sequence = from; sequence <= available; sequence++) {
+			if (publishedLaps.get((int) sequence & mask) != (int) (sequence >>> indexShift))
+				return sequence - 1;
+		}
+		return available;
+	}
+
+	void setGatingSequence(AtomicLong gatingSequence) {
+		this.gatingSequence = gatingSequence;
+	}
+}
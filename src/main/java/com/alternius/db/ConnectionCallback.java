@@ -0,0 +1,21 @@
+package com.alternius.db;
+
+import java.sql.SQLException;
+
+/**
+ * Work to be run with a connection borrowed from the pool.
+ *
+ * @param <T> type of value produced by the work
+ */
+public interface ConnectionCallback<T> {
+
+	/**
+	 * Runs the work. The connection is returned to the pool once this returns, so
+	 * it must not be kept.
+	 *
+	 * @param connection borrowed connection
+	 * @return any value to hand back to the caller
+	 * @throws SQLException
+	 */
+	T doInConnection(PooledConnection connection) throws SQLException;
+}
@@ -0,0 +1,262 @@
+package com.alternius.db;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of connections to the metrics database. Connections are opened
+ * lazily up to the maximum size, so a single-threaded caller only ever opens
+ * one. Idle connections are validated before being handed out again, and
+ * connections held for longer than the leak detection threshold are reported
+ * along with the stack trace of whoever borrowed them.
+ */
+public class ConnectionPool {
+
+	private static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30000;
+	private static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 30000;
+	private static final long DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS = 60000;
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int maxSize;
+
+	// One permit per connection that may be borrowed - bounds the pool size
+	private final Semaphore permits;
+	// Connections that have been returned and are ready to be handed out again,
+	// most recently returned first
+	private final Deque<PooledConnection> idle = new ArrayDeque<>();
+	private final Set<PooledConnection> borrowed = Collections
+			.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+
+	private volatile long borrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MILLIS;
+	private volatile long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+	private volatile long leakDetectionThresholdMillis = DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS;
+
+	private final ScheduledExecutorService leakDetector;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a pool of connections to the given database. No connections are
+	 * opened until the first borrow.
+	 *
+	 * @param url      JDBC URL of database
+	 * @param user     username of user to access database with
+	 * @param password password of user to access database with
+	 * @param maxSize  maximum number of connections open at once
+	 */
+	public ConnectionPool(String url, String user, String password, int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Pool size must be at least 1");
+
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+
+		leakDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "connection-pool-leak-detector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		leakDetector.scheduleWithFixedDelay(this::detectLeaks, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Borrows a connection from the pool, opening a new one if none are idle and
+	 * the pool is not full. Blocks for up to the borrow timeout if every
+	 * connection is in use. The connection MUST be given back with release().
+	 *
+	 * @return PooledConnection
+	 * @throws SQLException if the pool is closed, the timeout expires, or a new
+	 *                      connection cannot be opened
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (closed)
+			throw new SQLException("Connection pool is closed");
+
+		try {
+			if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+				throw new SQLException("Timed out after " + borrowTimeoutMillis + "ms waiting for a connection ("
+						+ maxSize + " in use)");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+
+		try {
+			PooledConnection pooled = takeValidIdleConnection();
+			if (pooled == null)
+				pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+
+			// Capturing a stack trace isn't free, so only do it when someone will look at
+			// it
+			pooled.markBorrowed(leakDetectionThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null);
+			borrowed.add(pooled);
+			return pooled;
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool. Any open transaction is rolled
+	 * back, and connections that are broken are closed rather than reused.
+	 *
+	 * @param pooled connection previously returned by borrow()
+	 */
+	public void release(PooledConnection pooled) {
+		if (pooled == null || !borrowed.remove(pooled))
+			return;
+
+		try {
+			boolean reusable = !closed && !pooled.getConnection().isClosed();
+			if (reusable && !pooled.getConnection().getAutoCommit()) {
+				// Caller left a transaction open - don't let it leak into the next borrower
+				pooled.getConnection().rollback();
+				pooled.getConnection().setAutoCommit(true);
+			}
+
+			if (reusable) {
+				pooled.markReturned();
+				synchronized (idle) {
+					idle.push(pooled);
+				}
+			} else {
+				pooled.close();
+			}
+		} catch (SQLException e) {
+			pooled.close();
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Pops the most recently used idle connection, checking any that have sat idle
+	 * longer than the validation interval. Dead connections are closed and
+	 * skipped.
+	 *
+	 * @return valid idle connection, or null if there are none
+	 */
+	private PooledConnection takeValidIdleConnection() {
+		while (true) {
+			PooledConnection pooled;
+			synchronized (idle) {
+				pooled = idle.poll();
+			}
+			if (pooled == null)
+				return null;
+
+			long idleFor = System.currentTimeMillis() - pooled.getLastReturnedAt();
+			if (idleFor < validationIntervalMillis || isValid(pooled))
+				return pooled;
+
+			pooled.close();
+		}
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			return pooled.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reports connections that have been borrowed for longer than the leak
+	 * detection threshold. Runs periodically on the leak detector thread.
+	 */
+	private void detectLeaks() {
+		long threshold = leakDetectionThresholdMillis;
+		if (threshold <= 0)
+			return;
+
+		long now = System.currentTimeMillis();
+		for (PooledConnection pooled : borrowed) {
+			Throwable borrowSite = pooled.getBorrowSite();
+			if (borrowSite != null && now - pooled.getBorrowedAt() > threshold) {
+				System.err.println("Possible connection leak: connection held for " + (now - pooled.getBorrowedAt())
+						+ "ms");
+				borrowSite.printStackTrace();
+				// Only report each borrow once
+				pooled.clearBorrowSite();
+			}
+		}
+	}
+
+	/**
+	 * Closes every idle connection and stops handing out new ones. Connections
+	 * that are still borrowed are closed when they are released.
+	 */
+	public void close() {
+		closed = true;
+		leakDetector.shutdownNow();
+		synchronized (idle) {
+			for (PooledConnection pooled : idle) {
+				pooled.close();
+			}
+			idle.clear();
+		}
+	}
+
+	/**
+	 * Sets how long borrow() waits for a connection when the pool is exhausted.
+	 *
+	 * @param borrowTimeoutMillis timeout in milliseconds
+	 */
+	public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * Sets how long a connection may sit idle before it is validated on borrow.
+	 *
+	 * @param validationIntervalMillis interval in milliseconds, 0 to validate on
+	 *                                 every borrow
+	 */
+	public void setValidationIntervalMillis(long validationIntervalMillis) {
+		this.validationIntervalMillis = validationIntervalMillis;
+	}
+
+	/**
+	 * Sets how long a connection may be held before it is reported as a possible
+	 * leak.
+	 *
+	 * @param leakDetectionThresholdMillis threshold in milliseconds, 0 to disable
+	 */
+	public void setLeakDetectionThresholdMillis(long leakDetectionThresholdMillis) {
+		this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+	}
+
+	/**
+	 * Returns the maximum number of connections the pool will open.
+	 *
+	 * @return pool size
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the number of connections currently borrowed.
+	 *
+	 * @return borrowed connection count
+	 */
+	public int getBorrowedCount() {
+		return borrowed.size();
+	}
+}
@@ -0,0 +1,41 @@
+package com.alternius.db;
+
+/**
+ * Rows to COPY into a staging table as part of
+ * DatabaseConnector.bulkMerge(), along with the statements that create the
+ * table and copy into it.
+ */
+public class CopyStage {
+
+	private final String stagingTableSql;
+	private final String copySql;
+	private final Iterable<Object[]> rows;
+
+	/**
+	 * Describes one staging table to load.
+	 *
+	 * @param stagingTableSql statement creating the staging table
+	 * @param copySql         COPY ... FROM STDIN statement for the staging table,
+	 *                        in the default text format
+	 * @param rows            rows to load, with values in the column order of
+	 *                        copySql. Values are written using toString(), and
+	 *                        null is written as NULL.
+	 */
+	public CopyStage(String stagingTableSql, String copySql, Iterable<Object[]> rows) {
+		this.stagingTableSql = stagingTableSql;
+		this.copySql = copySql;
+		this.rows = rows;
+	}
+
+	String getStagingTableSql() {
+		return stagingTableSql;
+	}
+
+	String getCopySql() {
+		return copySql;
+	}
+
+	Iterable<Object[]> getRows() {
+		return rows;
+	}
+}
@@ -1,18 +1,111 @@
 package com.alternius.db;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 
 /**
- * Utility class to connect to PostgreSQL database using JDBC driver. Did not
- * implement connection pooling due to the single-threaded nature of this
- * implementation.
+ * Utility class to connect to PostgreSQL database using JDBC driver.
+ * Connections come from a bounded ConnectionPool so that several processing
+ * threads can run against the database at once. Every method borrows a
+ * connection for the duration of the call and gives it straight back.
  */
 public class DatabaseConnector {
 
-	private Connection connection;
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final int DEFAULT_FETCH_SIZE = 1000;
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final long DEFAULT_BATCH_FLUSH_INTERVAL_MILLIS = 1000;
+	// How much COPY data to build up before handing it to the driver
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+	// How many asynchronous statements may wait for an I/O thread before the
+	// submitting thread has to run one itself
+	private static final int ASYNC_QUEUE_CAPACITY = 10000;
+	// How long closeConnection() waits for each I/O executor to finish
+	private static final long CLOSE_TIMEOUT_MILLIS = 30000;
+	// How many times in a row a batch may fail before its statements are sent one
+	// at a time, to find any that can never succeed
+	private static final int MAX_BATCH_ATTEMPTS = 3;
+	// Tables a statement writes or reads, for keeping statements on the same
+	// table in order when a batch is grouped by template
+	private static final Pattern TABLE_REFERENCE = Pattern
+			.compile("(?i)\\b(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|FROM|JOIN)\\s+([\\w.]+)");
+
+	// Statistics key prefix for templates sent with executeBatch()
+	private static final String BATCH_PREFIX = "[batch] ";
+
+	// Creating a RowSetFactory goes through the ServiceLoader, so only do it once
+	private static RowSetFactory rowSetFactory;
+
+	private final ConnectionPool pool;
+	private final QueryStatistics statistics = new QueryStatistics();
+
+	// Statements queued by addBatch() waiting to be sent, oldest first
+	private final Object batchLock = new Object();
+	// Held for the whole of a flush, so batches are sent one at a time and in
+	// order. Two flushes updating the same rows in different orders could
+	// otherwise deadlock each other. A ReentrantLock rather than synchronized,
+	// since it is held across database round trips and a virtual thread
+	// blocking inside a synchronized block pins its carrier thread.
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private List<QueuedStatement> batch = new ArrayList<>();
+	private long batchStartedAt;
+	// Failed flushes in a row, and statements given up on since startup
+	private int failedBatchAttempts;
+	private final AtomicInteger rejectedStatementCount = new AtomicInteger();
+	private final Map<String, Set<String>> tablesByTemplate = new ConcurrentHashMap<>();
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile long batchFlushIntervalMillis = DEFAULT_BATCH_FLUSH_INTERVAL_MILLIS;
+	// Flushes batches that have been waiting too long. Only started once something
+	// is batched.
+	private ScheduledExecutorService batchFlusher;
+
+	// Runs statements submitted with submitUpdate() and submitQuery(). Only started
+	// once something is submitted.
+	private ThreadPoolExecutor ioExecutor;
+	// Single-thread lanes for submitOrderedUpdate(), one per pooled connection.
+	// Only started once something is submitted to them.
+	private ThreadPoolExecutor[] orderedExecutors;
+	private final Set<CompletableFuture<?>> inFlight = Collections
+			.newSetFromMap(new ConcurrentHashMap<CompletableFuture<?>, Boolean>());
+	// First asynchronous failure since the last awaitPending(), so it is reported
+	// even if its future was never looked at
+	private final AtomicReference<Throwable> asyncFailure = new AtomicReference<>();
+	private final AtomicInteger asyncFailureCount = new AtomicInteger();
 
 	/**
-	 * Allows for connection to PostgreSQL database using the JDBC driver.
+	 * Allows for connection to PostgreSQL database using the JDBC driver, with the
+	 * default pool size.
 	 * 
 	 * @param host     hostname/address of database server
 	 * @param port     port of database server
@@ -24,27 +117,31 @@ public class DatabaseConnector {
 	 */
 	public DatabaseConnector(String host, String port, String user, String password, String database)
 			throws ClassNotFoundException, SQLException {
-		// Initialize PostgreSQL driver and bind to JDBC
-		Class.forName("org.postgresql.Driver");
-
-		// Open connection to database
-		connection = initializeConnection(host, port, user, password, database);
+		this(host, port, user, password, database, DEFAULT_POOL_SIZE);
 	}
 
 	/**
-	 * Opens connection to database.
+	 * Allows for connection to PostgreSQL database using the JDBC driver.
 	 * 
-	 * @param host     hostname/address of database server
-	 * @param port     port of database server
-	 * @param user     username of user to access database with
-	 * @param password password of user to access database with
-	 * @param database name of database to access
-	 * @return Connection
+	 * @param host        hostname/address of database server
+	 * @param port        port of database server
+	 * @param user        username of user to access database with
+	 * @param password    password of user to access database with
+	 * @param database    name of database to access
+	 * @param maxPoolSize maximum number of connections open at once
+	 * @throws ClassNotFoundException
 	 * @throws SQLException
 	 */
-	private Connection initializeConnection(String host, String port, String user, String password, String database)
-			throws SQLException {
-		return DriverManager.getConnection(buildConnectionURL(host, port, database), user, password);
+	public DatabaseConnector(String host, String port, String user, String password, String database,
+			int maxPoolSize) throws ClassNotFoundException, SQLException {
+		// Initialize PostgreSQL driver and bind to JDBC
+		Class.forName("org.postgresql.Driver");
+
+		pool = new ConnectionPool(buildConnectionURL(host, port, database), user, password, maxPoolSize);
+
+		// Open the first connection straight away so bad details fail here rather than
+		// on the first transaction
+		pool.release(pool.borrow());
 	}
 
 	/**
@@ -56,26 +153,71 @@ public class DatabaseConnector {
 	 * @return JDBC-formatted URI
 	 */
 	private String buildConnectionURL(String host, String port, String database) {
-		System.out.println(String.format("jdbc:postgresql://%s:%s/%s", host, port, database));
-		return String.format("jdbc:postgresql://%s:%s/%s", host, port, database);
+		// prepareThreshold=1 makes the driver switch to a named server-side statement
+		// on the first execution rather than the fifth. reWriteBatchedInserts is left
+		// off: the batched statements are upserts, and a multi-row upsert fails
+		// outright if two of its rows hit the same key.
+		String url = String.format("jdbc:postgresql://%s:%s/%s?prepareThreshold=1", host, port, database);
+		System.out.println(url);
+		return url;
+	}
+
+	/**
+	 * Returns the pool backing this connector, e.g. to tune its timeouts.
+	 * 
+	 * @return ConnectionPool
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Returns latency statistics for every statement run through this connector,
+	 * grouped by SQL template, and controls the slow-query log.
+	 * 
+	 * @return QueryStatistics
+	 */
+	public QueryStatistics getQueryStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Borrows a connection, passes it to the callback, and returns it to the pool
+	 * afterwards. Use this when several statements need to run on the same
+	 * connection, e.g. inside a transaction.
+	 * 
+	 * @param callback work to run with the connection
+	 * @return value returned by the callback
+	 * @throws SQLException
+	 */
+	public <T> T withConnection(ConnectionCallback<T> callback) throws SQLException {
+		PooledConnection pooled = pool.borrow();
+		try {
+			return callback.doInConnection(pooled);
+		} finally {
+			pool.release(pooled);
+		}
 	}
 
 	/**
 	 * Executes an SQL query on the connected database. Queries using this method
 	 * MUST return results, or an error will be encountered.
 	 * 
+	 * The results are copied out before the connection goes back to the pool, so
+	 * this is only suitable for small result sets. Use query() or stream() for
+	 * anything larger.
+	 * 
 	 * @param query SQL query string
 	 * @return ResultSet containing results from query
 	 * @throws SQLException
 	 */
 	public ResultSet executeQuery(String query) throws SQLException {
-		if (connection == null)
-			// Lazy error handling, verifies a connection exists before an SQLException gets
-			// thrown
-			return null;
-
-		Statement statement = connection.createStatement();
-		return statement.executeQuery(query);
+		return withConnection(pooled -> {
+			try (Statement statement = pooled.getConnection().createStatement();
+					ResultSet rs = timed(query, () -> statement.executeQuery(query))) {
+				return copyResults(rs);
+			}
+		});
 	}
 
 	/**
@@ -86,16 +228,800 @@ public class DatabaseConnector {
 	 * @throws SQLException
 	 */
 	public void executeUpdate(String sql) throws SQLException {
-		Statement statement = connection.createStatement();
-		statement.executeUpdate(sql);
+		withConnection(pooled -> {
+			try (Statement statement = pooled.getConnection().createStatement()) {
+				return timed(sql, () -> statement.executeUpdate(sql));
+			}
+		});
+	}
+
+	/**
+	 * Executes a parameterized SQL query on the connected database using a cached
+	 * PreparedStatement. The SQL template should use ? placeholders, which are
+	 * bound in order to the given parameters. Queries using this method MUST
+	 * return results.
+	 * 
+	 * The results are copied out before the connection goes back to the pool, so
+	 * this is only suitable for small result sets. Use query() or stream() for
+	 * anything larger.
+	 * 
+	 * @param sql    SQL query template
+	 * @param params values to bind to the template's placeholders
+	 * @return ResultSet containing results from query
+	 * @throws SQLException
+	 */
+	public ResultSet executePreparedQuery(String sql, Object... params) throws SQLException {
+		return withConnection(pooled -> {
+			try (ResultSet rs = timed(sql, () -> pooled.prepare(sql, params).executeQuery())) {
+				return copyResults(rs);
+			}
+		});
+	}
+
+	/**
+	 * Executes a parameterized SQL query using a cached PreparedStatement and maps
+	 * each row of the results. The ResultSet is closed before this returns.
+	 * 
+	 * @param sql    SQL query template
+	 * @param mapper maps each row to an object
+	 * @param params values to bind to the template's placeholders
+	 * @return list of mapped rows, in the order they were returned
+	 * @throws SQLException
+	 */
+	public <T> List<T> query(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+		return withConnection(pooled -> {
+			List<T> results = new ArrayList<>();
+			try (ResultSet rs = timed(sql, () -> pooled.prepare(sql, params).executeQuery())) {
+				while (rs.next()) {
+					results.add(mapper.mapRow(rs));
+				}
+			}
+			return results;
+		});
+	}
+
+	/**
+	 * Streams the results of a parameterized SQL query to a callback one row at a
+	 * time using the default fetch size. See stream(String, int, RowCallback,
+	 * Object...).
+	 * 
+	 * @param sql      SQL query template
+	 * @param callback handles each row
+	 * @param params   values to bind to the template's placeholders
+	 * @return number of rows streamed
+	 * @throws SQLException
+	 */
+	public long stream(String sql, RowCallback callback, Object... params) throws SQLException {
+		return stream(sql, DEFAULT_FETCH_SIZE, callback, params);
 	}
 
 	/**
-	 * Closes connection to database.
+	 * Streams the results of a parameterized SQL query to a callback one row at a
+	 * time. The driver only uses a server-side cursor when autocommit is off and a
+	 * fetch size is set, so the query runs inside a read transaction and fetches
+	 * fetchSize rows per round trip, keeping memory flat regardless of how many
+	 * rows there are. The statement and results are closed before this returns.
+	 * 
+	 * @param sql       SQL query template
+	 * @param fetchSize number of rows fetched per round trip
+	 * @param callback  handles each row
+	 * @param params    values to bind to the template's placeholders
+	 * @return number of rows streamed
+	 * @throws SQLException
+	 */
+	public long stream(String sql, int fetchSize, RowCallback callback, Object... params) throws SQLException {
+		// Timed from execution until the last row has been handled
+		return withConnection(pooled -> timed(sql, () -> {
+			Connection connection = pooled.getConnection();
+			connection.setAutoCommit(false);
+			// Not taken from the statement cache - the fetch size is specific to this
+			// query, and an open cursor would tie up the cached statement
+			try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY)) {
+				statement.setFetchSize(fetchSize);
+				for (int i = 0; i < params.length; i++) {
+					statement.setObject(i + 1, params[i]);
+				}
+
+				long rows = 0;
+				try (ResultSet rs = statement.executeQuery()) {
+					while (rs.next()) {
+						callback.processRow(rs);
+						rows++;
+					}
+				}
+				connection.commit();
+				return rows;
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}));
+	}
+
+	/**
+	 * Executes a parameterized SQL statement on the connected database using a
+	 * cached PreparedStatement. Use for INSERT or UPDATE.
+	 * 
+	 * @param sql    SQL statement template
+	 * @param params values to bind to the template's placeholders
+	 * @return number of rows affected
+	 * @throws SQLException
+	 */
+	public int executePreparedUpdate(String sql, Object... params) throws SQLException {
+		return withConnection(pooled -> timed(sql, () -> pooled.prepare(sql, params).executeUpdate()));
+	}
+
+	/**
+	 * Combines several parameterized statements into one template that can be
+	 * passed to executePreparedUpdate(), submitUpdate(), addBatch() or a
+	 * MicroBatchSession in place of running them one after another. Placeholders
+	 * keep their order, so the parameters are every statement's parameters in
+	 * turn.
+	 * 
+	 * The driver sends the statements of a combined template back to back and
+	 * only waits for the server once at the end, so the whole set costs one round
+	 * trip instead of one per statement. They also run in a single implicit
+	 * transaction, so with autocommit on either all of them apply or none do.
+	 * None of the statements may return rows.
+	 * 
+	 * @param statements SQL statement templates, without trailing semicolons
+	 * @return combined SQL template
+	 */
+	public static String pipeline(String... statements) {
+		return String.join(";\n", statements);
+	}
+
+	/**
+	 * Executes a parameterized SQL statement on a background I/O thread and
+	 * returns straight away. Use for INSERT or UPDATE when the caller does not
+	 * need to wait for the round trip. Failures complete the future
+	 * exceptionally and are also reported by the next awaitPending().
+	 * 
+	 * @param sql    SQL statement template
+	 * @param params values to bind to the template's placeholders
+	 * @return future completed with the number of rows affected
+	 */
+	public CompletableFuture<Integer> submitUpdate(String sql, Object... params) {
+		return submit(() -> executePreparedUpdate(sql, params), ioExecutor());
+	}
+
+	/**
+	 * Executes a parameterized SQL statement on a background I/O thread, as in
+	 * submitUpdate(), but in order with every other statement submitted with the
+	 * same ordering key. Statements with different keys may still run in
+	 * parallel. If the key's queue is full the caller waits for space, rather
+	 * than running the statement itself out of order.
+	 * 
+	 * @param orderingKey key whose statements must run in the order submitted,
+	 *                    e.g. the ID of the row's group
+	 * @param sql         SQL statement template
+	 * @param params      values to bind to the template's placeholders
+	 * @return future completed with the number of rows affected
+	 */
+	public CompletableFuture<Integer> submitOrderedUpdate(long orderingKey, String sql, Object... params) {
+		return submit(() -> executePreparedUpdate(sql, params), orderedExecutor(orderingKey));
+	}
+
+	/**
+	 * Executes a parameterized SQL query on a background I/O thread and maps each
+	 * row of the results, as in query().
+	 * 
+	 * @param sql    SQL query template
+	 * @param mapper maps each row to an object
+	 * @param params values to bind to the template's placeholders
+	 * @return future completed with the list of mapped rows
+	 */
+	public <T> CompletableFuture<List<T>> submitQuery(String sql, RowMapper<T> mapper, Object... params) {
+		return submit(() -> query(sql, mapper, params), ioExecutor());
+	}
+
+	/**
+	 * Waits until every statement submitted so far has finished.
+	 * 
+	 * @throws SQLException if any submitted statement has failed since the last
+	 *                      call, with the first failure as its cause
+	 */
+	public void awaitPending() throws SQLException {
+		for (CompletableFuture<?> future : new ArrayList<>(inFlight)) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for pending statements", e);
+			} catch (ExecutionException e) {
+				// Recorded in asyncFailure below
+			}
+		}
+
+		Throwable failure = asyncFailure.getAndSet(null);
+		int failures = asyncFailureCount.getAndSet(0);
+		if (failure != null)
+			throw new SQLException(failures + " asynchronous statement(s) failed", failure);
+	}
+
+	/**
+	 * Runs work on an I/O executor, tracking it until it completes.
+	 * 
+	 * @param work     database work to run
+	 * @param executor executor to run it on
+	 * @return future completed with the work's result
+	 */
+	private <T> CompletableFuture<T> submit(SqlSupplier<T> work, Executor executor) {
+		CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+			try {
+				return work.get();
+			} catch (SQLException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+
+		// awaitPending() waits on this stage rather than the future itself, so any
+		// failure has been recorded by the time it returns
+		CompletableFuture<T> tracked = future.whenComplete((result, error) -> {
+			if (error != null) {
+				Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause()
+						: error;
+				asyncFailure.compareAndSet(null, cause);
+				asyncFailureCount.incrementAndGet();
+			}
+		});
+		inFlight.add(tracked);
+		tracked.whenComplete((result, error) -> inFlight.remove(tracked));
+		return future;
+	}
+
+	/**
+	 * Returns the I/O executor, starting it on first use. It has one thread per
+	 * pooled connection, since more threads would only wait on the pool. When its
+	 * queue is full the submitting thread runs the statement itself, which slows
+	 * submitters down to the speed of the database.
+	 */
+	private synchronized ThreadPoolExecutor ioExecutor() {
+		if (ioExecutor == null) {
+			AtomicInteger threadCount = new AtomicInteger();
+			ioExecutor = new ThreadPoolExecutor(pool.getMaxSize(), pool.getMaxSize(), 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_CAPACITY), runnable -> {
+						Thread thread = new Thread(runnable, "database-io-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return ioExecutor;
+	}
+
+	/**
+	 * Returns the ordered lane for a key, starting the lanes on first use. Each
+	 * lane has a single thread so its statements run one at a time, in order.
+	 */
+	private synchronized ThreadPoolExecutor orderedExecutor(long orderingKey) {
+		if (orderedExecutors == null) {
+			int lanes = pool.getMaxSize();
+			orderedExecutors = new ThreadPoolExecutor[lanes];
+			for (int i = 0; i < lanes; i++) {
+				String name = "database-io-ordered-" + (i + 1);
+				orderedExecutors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(Math.max(1, ASYNC_QUEUE_CAPACITY / lanes)), runnable -> {
+							Thread thread = new Thread(runnable, name);
+							thread.setDaemon(true);
+							return thread;
+						}, (runnable, executor) -> {
+							// Wait for space in the lane, which slows submitters down to the
+							// speed of the database without reordering anything
+							try {
+								executor.getQueue().put(runnable);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new RejectedExecutionException("Interrupted waiting for space in I/O queue", e);
+							}
+						});
+			}
+		}
+		return orderedExecutors[Math.floorMod(Long.hashCode(orderingKey), orderedExecutors.length)];
+	}
+
+	/**
+	 * Opens a session that groups units of work into larger database transactions.
+	 * See MicroBatchSession.
+	 * 
+	 * @param commitInterval number of units to group into each transaction
+	 * @return MicroBatchSession, which must be closed when done
+	 */
+	public MicroBatchSession openMicroBatchSession(int commitInterval) {
+		return new MicroBatchSession(pool, commitInterval, statistics);
+	}
+
+	/**
+	 * Queues a parameterized SQL statement to be sent later as part of a JDBC
+	 * batch. The queue is flushed once it holds the configured number of
+	 * statements or its oldest statement has waited for the configured interval,
+	 * whichever comes first. Use for INSERT or UPDATE statements whose results are
+	 * not needed straight away.
+	 * 
+	 * Once this returns the statement is queued and will be sent, so a flush it
+	 * triggers that fails is only reported here. Its statements stay queued for
+	 * the next flush.
+	 * 
+	 * @param sql    SQL statement template
+	 * @param params values to bind to the template's placeholders
+	 * @throws SQLException
+	 */
+	public void addBatch(String sql, Object... params) throws SQLException {
+		boolean full;
+		synchronized (batchLock) {
+			if (batch.isEmpty())
+				batchStartedAt = System.currentTimeMillis();
+			batch.add(new QueuedStatement(sql, params));
+			full = batch.size() >= batchSize;
+
+			if (batchFlusher == null)
+				startBatchFlusher();
+		}
+
+		if (full) {
+			try {
+				flush();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Sends every queued statement to the database in one transaction. Statements
+	 * sharing a template are sent together with executeBatch(), without moving
+	 * any statement ahead of an earlier one on the same table. Only one flush runs
+	 * at a time. If the batch fails it is rolled back and its statements are put
+	 * back at the front of the queue, to be sent again by the next flush.
+	 * 
+	 * Once a batch has failed several flushes in a row, its statements are sent
+	 * one at a time instead. Any that fail for a reason other than the database
+	 * being unreachable or busy are reported and dropped, so one bad statement
+	 * can't hold up everything queued behind it. See getRejectedStatementCount().
+	 * 
+	 * @throws SQLException if some of the statements could not be sent and are
+	 *                      still queued
+	 */
+	public void flush() throws SQLException {
+		flushLock.lock();
+		try {
+			List<QueuedStatement> toSend;
+			long startedAt;
+			synchronized (batchLock) {
+				if (batch.isEmpty())
+					return;
+				toSend = batch;
+				startedAt = batchStartedAt;
+				batch = new ArrayList<>();
+			}
+
+			try {
+				if (failedBatchAttempts >= MAX_BATCH_ATTEMPTS)
+					sendEach(toSend);
+				else
+					send(toSend);
+				failedBatchAttempts = 0;
+			} catch (SQLException e) {
+				failedBatchAttempts++;
+				// Ahead of anything queued since, so statements are still sent in the
+				// order they were queued
+				synchronized (batchLock) {
+					toSend.addAll(batch);
+					batch = toSend;
+					batchStartedAt = startedAt;
+				}
+				throw e;
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of queued statements dropped because they failed on
+	 * their own, e.g. by violating a constraint. Each one is also reported as it
+	 * is dropped.
+	 * 
+	 * @return rejected statement count
+	 */
+	public int getRejectedStatementCount() {
+		return rejectedStatementCount.get();
+	}
+
+	/**
+	 * Sends queued statements in one transaction, rolling it back if any fail.
+	 */
+	private void send(List<QueuedStatement> toSend) throws SQLException {
+		List<TemplateRun> runs = groupByTemplate(toSend);
+
+		withConnection(pooled -> {
+			Connection connection = pooled.getConnection();
+			connection.setAutoCommit(false);
+			try {
+				for (TemplateRun run : runs) {
+					PreparedStatement statement = null;
+					for (Object[] params : run.params) {
+						statement = pooled.prepare(run.sql, params);
+						statement.addBatch();
+					}
+					// Recorded separately from single executions of the same template,
+					// since one batch covers many rows
+					PreparedStatement batchStatement = statement;
+					timed(BATCH_PREFIX + run.sql, () -> batchStatement.executeBatch());
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Sends queued statements one at a time, each in its own transaction, after a
+	 * batch of them has failed too often. Statements that fail because of what
+	 * they are rather than the state of the database are dropped and reported.
+	 * Sent statements are removed from the list, so on failure it holds what is
+	 * still to be sent.
+	 */
+	private void sendEach(List<QueuedStatement> toSend) throws SQLException {
+		while (!toSend.isEmpty()) {
+			QueuedStatement queued = toSend.get(0);
+			try {
+				executePreparedUpdate(queued.getSql(), queued.getParams());
+			} catch (SQLException e) {
+				if (isTransient(e))
+					throw e;
+				rejectedStatementCount.incrementAndGet();
+				System.err.println("Dropping queued statement that keeps failing: " + queued.getSql() + " with "
+						+ Arrays.toString(queued.getParams()));
+				e.printStackTrace();
+			}
+			toSend.remove(0);
+		}
+	}
+
+	/**
+	 * Whether a failure is down to the database or connection rather than the
+	 * statement - connection errors, pool timeouts, deadlocks, serialization
+	 * failures, resource shortages and shutdowns.
+	 */
+	private static boolean isTransient(SQLException e) {
+		String state = e.getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("40") || state.startsWith("53")
+				|| state.startsWith("57");
+	}
+
+	/**
+	 * Groups queued statements into runs of the same template, so each run can be
+	 * sent as one JDBC batch. A statement joins the last run of its template
+	 * unless a run of another template touching one of the same tables has
+	 * started since, in which case it starts a new run. Statements on the same
+	 * table therefore keep the order they were queued in, e.g. a balance carried
+	 * forward only after the row it is carried into has been opened.
+	 */
+	private List<TemplateRun> groupByTemplate(List<QueuedStatement> toSend) {
+		List<TemplateRun> runs = new ArrayList<>();
+		for (QueuedStatement queued : toSend) {
+			Set<String> tables = tablesOf(queued.getSql());
+			TemplateRun target = null;
+			for (int i = runs.size() - 1; i >= 0; i--) {
+				TemplateRun run = runs.get(i);
+				if (run.sql.equals(queued.getSql())) {
+					target = run;
+					break;
+				}
+				if (!Collections.disjoint(run.tables, tables))
+					break;
+			}
+			if (target == null) {
+				target = new TemplateRun(queued.getSql(), tables);
+				runs.add(target);
+			}
+			target.params.add(queued.getParams());
+		}
+		return runs;
+	}
+
+	private Set<String> tablesOf(String sql) {
+		return tablesByTemplate.computeIfAbsent(sql, template -> {
+			Set<String> tables = new HashSet<>();
+			Matcher matcher = TABLE_REFERENCE.matcher(template);
+			while (matcher.find()) {
+				// ON CONFLICT ... DO UPDATE SET names no table
+				if (!matcher.group(1).equalsIgnoreCase("SET"))
+					tables.add(matcher.group(1).toLowerCase());
+			}
+			return tables;
+		});
+	}
+
+	/**
+	 * Starts the background thread that flushes batches once they are older than
+	 * the flush interval. Must be called holding batchLock.
+	 */
+	private void startBatchFlusher() {
+		batchFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "database-batch-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Check a few times per interval so batches don't sit much longer than it
+		long period = Math.max(1, batchFlushIntervalMillis / 4);
+		batchFlusher.scheduleWithFixedDelay(() -> {
+			boolean due;
+			synchronized (batchLock) {
+				due = !batch.isEmpty() && System.currentTimeMillis() - batchStartedAt >= batchFlushIntervalMillis;
+			}
+			if (due) {
+				try {
+					flush();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets how many statements can be queued before addBatch() flushes them.
+	 * 
+	 * @param batchSize maximum number of queued statements
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets how long queued statements may wait before they are flushed. Should be
+	 * set before the first statement is batched, since the background flusher's
+	 * polling period is derived from it.
+	 * 
+	 * @param batchFlushIntervalMillis interval in milliseconds
+	 */
+	public void setBatchFlushIntervalMillis(long batchFlushIntervalMillis) {
+		this.batchFlushIntervalMillis = batchFlushIntervalMillis;
+	}
+
+	/**
+	 * Bulk loads rows by streaming them into a staging table with COPY, then
+	 * merging the staging table into the real tables with set-based statements.
+	 * Everything runs in one transaction on one connection, so the staging table
+	 * should be created as a TEMPORARY table with ON COMMIT DROP.
+	 * 
+	 * @param stagingTableSql statement creating the staging table
+	 * @param copySql         COPY ... FROM STDIN statement for the staging table,
+	 *                        in the default text format
+	 * @param rows            rows to load, with values in the column order of
+	 *                        copySql. Values are written using toString(), and
+	 *                        null is written as NULL.
+	 * @param mergeSql        statements moving the staged rows into place, run in
+	 *                        order after the copy
+	 * @return number of rows copied into the staging table
+	 * @throws SQLException
+	 */
+	public long bulkMerge(String stagingTableSql, String copySql, Iterable<Object[]> rows, String... mergeSql)
+			throws SQLException {
+		return bulkMerge(Collections.singletonList(new CopyStage(stagingTableSql, copySql, rows)), mergeSql);
+	}
+
+	/**
+	 * Bulk loads rows into several staging tables, then merges them into the real
+	 * tables, as above. Every table is copied and merged in the same transaction,
+	 * so either all of the rows are merged or none are.
+	 * 
+	 * @param stages   staging tables to create and copy into, in order
+	 * @param mergeSql statements moving the staged rows into place, run in order
+	 *                 after every copy
+	 * @return total number of rows copied into the staging tables
+	 * @throws SQLException
+	 */
+	public long bulkMerge(List<CopyStage> stages, String... mergeSql) throws SQLException {
+		return withConnection(pooled -> {
+			Connection connection = pooled.getConnection();
+			connection.setAutoCommit(false);
+			try (Statement statement = connection.createStatement()) {
+				long copied = 0;
+				for (CopyStage stage : stages) {
+					String stagingTableSql = stage.getStagingTableSql();
+					timed(stagingTableSql, () -> statement.execute(stagingTableSql));
+					copied += timed(stage.getCopySql(), () -> copyIn(connection, stage.getCopySql(), stage.getRows()));
+				}
+
+				for (String sql : mergeSql) {
+					timed(sql, () -> statement.executeUpdate(sql));
+				}
+				connection.commit();
+				return copied;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		});
+	}
+
+	/**
+	 * Streams rows to the server through the PostgreSQL COPY protocol, formatted
+	 * as tab-separated text. Rows are sent in chunks rather than built up in
+	 * memory all at once.
+	 * 
+	 * @param connection connection to copy through
+	 * @param copySql    COPY ... FROM STDIN statement
+	 * @param rows       rows to send
+	 * @return number of rows the server reports as copied
+	 * @throws SQLException
+	 */
+	private static long copyIn(Connection connection, String copySql, Iterable<Object[]> rows) throws SQLException {
+		CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql);
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(COPY_BUFFER_BYTES);
+			StringBuilder line = new StringBuilder();
+			for (Object[] row : rows) {
+				line.setLength(0);
+				for (int i = 0; i < row.length; i++) {
+					if (i > 0)
+						line.append('\t');
+					appendCopyValue(line, row[i]);
+				}
+				line.append('\n');
+
+				byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+				buffer.write(bytes, 0, bytes.length);
+				if (buffer.size() >= COPY_BUFFER_BYTES) {
+					copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+					buffer.reset();
+				}
+			}
+			if (buffer.size() > 0)
+				copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+
+			return copy.endCopy();
+		} finally {
+			if (copy.isActive())
+				copy.cancelCopy();
+		}
+	}
+
+	/**
+	 * Appends a value in COPY text format, escaping the characters that would
+	 * otherwise be read as delimiters.
+	 * 
+	 * @param line  line being built
+	 * @param value value to append, may be null
+	 */
+	private static void appendCopyValue(StringBuilder line, Object value) {
+		if (value == null) {
+			line.append("\\N");
+			return;
+		}
+
+		String text = value.toString();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\t':
+				line.append("\\t");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			default:
+				line.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Runs database work, recording how long it took against the given SQL in the
+	 * query statistics. Failed executions are recorded too.
+	 * 
+	 * @param sql  SQL the work executes
+	 * @param work database work to run
+	 * @return value returned by the work
+	 * @throws SQLException
+	 */
+	private <T> T timed(String sql, SqlSupplier<T> work) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return work.get();
+		} finally {
+			statistics.record(sql, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Copies a ResultSet into a disconnected CachedRowSet so it can still be read
+	 * after the statement and connection it came from have been released.
+	 * 
+	 * @param rs results to copy
+	 * @return CachedRowSet holding the same rows
+	 * @throws SQLException
+	 */
+	private static ResultSet copyResults(ResultSet rs) throws SQLException {
+		CachedRowSet copy = getRowSetFactory().createCachedRowSet();
+		copy.populate(rs);
+		return copy;
+	}
+
+	private static synchronized RowSetFactory getRowSetFactory() throws SQLException {
+		if (rowSetFactory == null)
+			rowSetFactory = RowSetProvider.newFactory();
+		return rowSetFactory;
+	}
+
+	/**
+	 * Waits for submitted statements and flushes any queued ones, then closes
+	 * every connection to the database along with any cached statements. The I/O
+	 * threads, ordered lanes included, are shut down once anything still queued
+	 * on them has run.
 	 * 
 	 * @throws SQLException
 	 */
 	public void closeConnection() throws SQLException {
-		connection.close();
+		try {
+			awaitPending();
+			flush();
+		} finally {
+			synchronized (batchLock) {
+				if (batchFlusher != null)
+					batchFlusher.shutdownNow();
+			}
+			List<ThreadPoolExecutor> executors = new ArrayList<>();
+			synchronized (this) {
+				if (ioExecutor != null)
+					executors.add(ioExecutor);
+				if (orderedExecutors != null)
+					executors.addAll(Arrays.asList(orderedExecutors));
+			}
+			for (ThreadPoolExecutor executor : executors) {
+				executor.shutdown();
+			}
+			// Statements submitted while awaitPending() ran would otherwise find the
+			// pool closed under them
+			for (ThreadPoolExecutor executor : executors) {
+				try {
+					if (!executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+						System.err.println("Closing with statements still running on " + executor);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			pool.close();
+		}
+	}
+
+	/**
+	 * Statements of one template sent together as a JDBC batch.
+	 */
+	private static class TemplateRun {
+		final String sql;
+		final Set<String> tables;
+		final List<Object[]> params = new ArrayList<>();
+
+		TemplateRun(String sql, Set<String> tables) {
+			this.sql = sql;
+			this.tables = tables;
+		}
+	}
+
+	/**
+	 * Database work that produces a value, for running on another thread.
+	 */
+	private interface SqlSupplier<T> {
+		T get() throws SQLException;
 	}
 }
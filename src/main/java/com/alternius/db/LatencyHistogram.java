@@ -0,0 +1,100 @@
+package com.alternius.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds. Buckets double in width
+ * with each power of two and are split into 8 linear sub-buckets, so recorded
+ * values keep about 12% precision from a microsecond up to days, in a fixed
+ * amount of memory.
+ */
+class LatencyHistogram {
+
+	// 3 bits of sub-bucket below each power of two
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param micros latency in microseconds
+	 */
+	void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+
+		counts.incrementAndGet(bucketIndex(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+
+		long max;
+		while (micros > (max = maxMicros.get())) {
+			if (maxMicros.compareAndSet(max, micros))
+				break;
+		}
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	long getTotalMicros() {
+		return totalMicros.get();
+	}
+
+	long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of recorded latencies
+	 * fall, rounded up to the top of its bucket.
+	 *
+	 * @param quantile fraction between 0 and 1, e.g. 0.99 for p99
+	 * @return latency in microseconds, or 0 if nothing has been recorded
+	 */
+	long getQuantileMicros(double quantile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(bucketUpperBound(i), maxMicros.get());
+		}
+		return maxMicros.get();
+	}
+
+	/**
+	 * Values below 8 get a bucket each. Above that, the bucket is picked by the
+	 * position of the highest set bit plus the next three bits.
+	 */
+	private static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+	}
+}
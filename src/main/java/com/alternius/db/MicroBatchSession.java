@@ -0,0 +1,356 @@
+package com.alternius.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Groups units of work - e.g. the statements for one processed transaction -
+ * into larger database transactions, so the server only has to flush its WAL
+ * once per commit interval rather than once per statement.
+ *
+ * Each unit runs inside a savepoint. If a unit fails it is rolled back to its
+ * savepoint on its own and the rest of the transaction carries on. If the
+ * commit itself fails, the transaction is rolled back and every unit in it is
+ * replayed in a fresh transaction, up to the retry limit. Units that still
+ * haven't been committed after that are kept, and replayed at the start of the
+ * next transaction, so a unit that has ended is never silently lost.
+ *
+ * A transaction is also committed once it has been open for the maximum age,
+ * so a quiet session doesn't sit idle in transaction holding row locks. That
+ * is checked as units end, and by commitIfOverdue() for callers that want to
+ * check it from a timer.
+ *
+ * A session holds a connection while a transaction is open and gives it back to
+ * the pool after every commit. It is not thread-safe.
+ */
+public class MicroBatchSession implements AutoCloseable {
+
+	private static final int DEFAULT_MAX_RETRIES = 3;
+	private static final long DEFAULT_MAX_AGE_MILLIS = 1000;
+	// Statistics key for commits, which is where the WAL flush cost shows up
+	private static final String COMMIT = "COMMIT";
+
+	private final ConnectionPool pool;
+	private final QueryStatistics statistics;
+	private final int commitInterval;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+	private PooledConnection pooled;
+	// When the open transaction borrowed its connection
+	private long transactionStartedAt;
+	// Units that have run in the open transaction, kept so they can be replayed if
+	// the commit fails
+	private final List<List<QueuedStatement>> pendingUnits = new ArrayList<>();
+	private List<QueuedStatement> currentUnit;
+	private Savepoint savepoint;
+
+	/**
+	 * Creates a session. Use DatabaseConnector.openMicroBatchSession().
+	 *
+	 * @param pool           pool to borrow connections from
+	 * @param commitInterval number of units to group into each transaction
+	 * @param statistics     where to record statement latencies
+	 */
+	MicroBatchSession(ConnectionPool pool, int commitInterval, QueryStatistics statistics) {
+		if (commitInterval < 1)
+			throw new IllegalArgumentException("Commit interval must be at least 1");
+
+		this.pool = pool;
+		this.commitInterval = commitInterval;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Starts a unit of work. Every statement executed until endUnit() or
+	 * abortUnit() belongs to it.
+	 *
+	 * @throws SQLException
+	 */
+	public void beginUnit() throws SQLException {
+		if (currentUnit != null)
+			throw new IllegalStateException("Unit already in progress");
+
+		savepoint = connection().setSavepoint();
+		currentUnit = new ArrayList<>();
+	}
+
+	/**
+	 * Executes a parameterized statement as part of the current unit, or as a
+	 * unit of its own if none has been started.
+	 *
+	 * @param sql    SQL statement template
+	 * @param params values to bind to the template's placeholders
+	 * @return number of rows affected
+	 * @throws SQLException
+	 */
+	public int execute(String sql, Object... params) throws SQLException {
+		boolean ownUnit = currentUnit == null;
+		if (ownUnit)
+			beginUnit();
+
+		try {
+			int rows = executeTimed(sql, params);
+			currentUnit.add(new QueuedStatement(sql, params));
+			if (ownUnit)
+				endUnit();
+			return rows;
+		} catch (SQLException e) {
+			if (ownUnit)
+				abortUnit();
+			throw e;
+		}
+	}
+
+	/**
+	 * Finishes the current unit, committing the transaction if it now holds the
+	 * commit interval's worth of units or has reached the maximum age. Once this
+	 * returns the unit will be committed - if the commit fails it is reported
+	 * here, and the unit is kept for the next one.
+	 *
+	 * @throws SQLException if the unit can't be finished
+	 */
+	public void endUnit() throws SQLException {
+		if (currentUnit == null)
+			throw new IllegalStateException("No unit in progress");
+
+		pooled.getConnection().releaseSavepoint(savepoint);
+		pendingUnits.add(currentUnit);
+		currentUnit = null;
+		savepoint = null;
+
+		if (pendingUnits.size() >= commitInterval || isOverdue()) {
+			try {
+				commit();
+			} catch (SQLException e) {
+				System.err.println(pendingUnits.size() + " units of work kept for the next commit");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Commits the open transaction if it has reached the maximum age and no unit
+	 * is in progress.
+	 *
+	 * @throws SQLException if the commit fails after every retry
+	 */
+	public void commitIfOverdue() throws SQLException {
+		if (currentUnit == null && isOverdue())
+			commit();
+	}
+
+	/**
+	 * Rolls back the statements of the current unit, leaving earlier units in
+	 * the transaction untouched. Does nothing if no unit is in progress.
+	 */
+	public void abortUnit() {
+		if (currentUnit == null)
+			return;
+
+		currentUnit = null;
+		try {
+			pooled.getConnection().rollback(savepoint);
+		} catch (SQLException e) {
+			// The connection is probably gone. Get a new one and replay what had been
+			// done so far so it isn't lost.
+			e.printStackTrace();
+			discardConnection();
+			try {
+				connection();
+			} catch (SQLException replayError) {
+				replayError.printStackTrace();
+			}
+		} finally {
+			savepoint = null;
+		}
+	}
+
+	/**
+	 * Commits every unit finished so far. If the commit fails, the transaction is
+	 * rolled back and the units are replayed and committed again, up to the retry
+	 * limit.
+	 *
+	 * @throws SQLException if every attempt fails, in which case the pending
+	 *                      units are kept and replayed into the next transaction
+	 */
+	public void commit() throws SQLException {
+		if (currentUnit != null)
+			throw new IllegalStateException("Cannot commit with a unit in progress");
+		if (pooled == null && pendingUnits.isEmpty())
+			return;
+
+		SQLException lastError = null;
+		for (int attempt = 0; attempt <= maxRetries; attempt++) {
+			try {
+				// A fresh connection replays the units as it starts its transaction. If
+				// the connection was kept, its transaction was rolled back.
+				if (pooled == null)
+					connection();
+				else if (attempt > 0)
+					replayPendingUnits();
+				long start = System.nanoTime();
+				try {
+					pooled.getConnection().commit();
+				} finally {
+					statistics.record(COMMIT, System.nanoTime() - start);
+				}
+
+				pendingUnits.clear();
+				releaseConnection();
+				return;
+			} catch (SQLException e) {
+				lastError = e;
+				rollbackQuietly();
+				if (!isUsable())
+					discardConnection();
+			}
+		}
+
+		rollbackQuietly();
+		releaseConnection();
+		throw lastError;
+	}
+
+	/**
+	 * Commits anything pending and gives the connection back to the pool.
+	 *
+	 * @throws SQLException
+	 */
+	@Override
+	public void close() throws SQLException {
+		abortUnit();
+		commit();
+	}
+
+	/**
+	 * Sets how many times a failed commit is retried before its units are given
+	 * up on.
+	 *
+	 * @param maxRetries number of retries
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Sets how long a transaction may stay open before it is committed, however
+	 * few units it holds.
+	 *
+	 * @param maxAgeMillis maximum age in milliseconds
+	 */
+	public void setMaxAgeMillis(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	private boolean isOverdue() {
+		return pooled != null && System.currentTimeMillis() - transactionStartedAt >= maxAgeMillis;
+	}
+
+	/**
+	 * Re-runs every pending unit in the current (fresh) transaction, each inside
+	 * its own savepoint. Units that fail this time are dropped.
+	 *
+	 * @throws SQLException if the connection itself fails
+	 */
+	private void replayPendingUnits() throws SQLException {
+		Connection connection = connection();
+		Iterator<List<QueuedStatement>> units = pendingUnits.iterator();
+		while (units.hasNext()) {
+			List<QueuedStatement> unit = units.next();
+			Savepoint replaySavepoint = connection.setSavepoint();
+			try {
+				for (QueuedStatement statement : unit) {
+					executeTimed(statement.getSql(), statement.getParams());
+				}
+				connection.releaseSavepoint(replaySavepoint);
+			} catch (SQLException e) {
+				if (!isUsable())
+					throw e;
+				System.err.println("Dropping unit of work that failed on replay");
+				e.printStackTrace();
+				connection.rollback(replaySavepoint);
+				units.remove();
+			}
+		}
+	}
+
+	/**
+	 * Executes a statement on the session's connection, recording its latency.
+	 */
+	private int executeTimed(String sql, Object[] params) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return pooled.prepare(sql, params).executeUpdate();
+		} finally {
+			statistics.record(sql, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the session's connection, borrowing one and starting a transaction
+	 * if it doesn't have one. Units left over from a transaction that was lost or
+	 * failed to commit are replayed into the new transaction first.
+	 */
+	private Connection connection() throws SQLException {
+		if (pooled == null) {
+			pooled = pool.borrow();
+			pooled.getConnection().setAutoCommit(false);
+			transactionStartedAt = System.currentTimeMillis();
+			if (!pendingUnits.isEmpty()) {
+				try {
+					replayPendingUnits();
+				} catch (SQLException e) {
+					discardConnection();
+					throw e;
+				}
+			}
+		}
+		return pooled.getConnection();
+	}
+
+	private boolean isUsable() {
+		try {
+			return pooled != null && pooled.getConnection().isValid(1);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void rollbackQuietly() {
+		if (pooled == null)
+			return;
+		try {
+			pooled.getConnection().rollback();
+		} catch (SQLException e) {
+			// Nothing more to undo
+		}
+	}
+
+	private void releaseConnection() {
+		if (pooled == null)
+			return;
+		try {
+			pooled.getConnection().setAutoCommit(true);
+		} catch (SQLException e) {
+			// The pool will close it if it's broken
+		}
+		pool.release(pooled);
+		pooled = null;
+	}
+
+	/**
+	 * Throws away a broken connection so the next use borrows a new one.
+	 */
+	private void discardConnection() {
+		if (pooled == null)
+			return;
+		pooled.close();
+		pool.release(pooled);
+		pooled = null;
+	}
+}
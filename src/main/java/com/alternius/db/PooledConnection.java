@@ -0,0 +1,128 @@
+package com.alternius.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection owned by a ConnectionPool. Holds the PreparedStatement cache for
+ * the connection along with the bookkeeping the pool needs for validation and
+ * leak detection. Only the thread that borrowed it should use it.
+ */
+public class PooledConnection {
+
+	private final Connection connection;
+
+	// Prepared statements for this connection, keyed by their SQL template. Keeping
+	// them open lets the driver reuse the server-side prepared statement instead of
+	// having Postgres parse and plan the same query for every transaction.
+	private final Map<String, PreparedStatement> statementCache = new HashMap<>();
+
+	// Read by the pool's leak detector thread as well as the borrower
+	private volatile long lastReturnedAt;
+	private volatile long borrowedAt;
+	private volatile Throwable borrowSite;
+
+	/**
+	 * Wraps a newly opened connection.
+	 *
+	 * @param connection JDBC connection to be pooled
+	 */
+	PooledConnection(Connection connection) {
+		this.connection = connection;
+		this.lastReturnedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the underlying JDBC connection. Do not close it - return the
+	 * PooledConnection to its pool instead.
+	 *
+	 * @return Connection
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Fetches the cached PreparedStatement for the given template, preparing it on
+	 * first use, and binds the given parameters to it.
+	 *
+	 * @param sql    SQL template
+	 * @param params values to bind to the template's placeholders
+	 * @return PreparedStatement ready to be executed
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql, Object... params) throws SQLException {
+		PreparedStatement statement = statementCache.get(sql);
+		if (statement == null || statement.isClosed()) {
+			statement = connection.prepareStatement(sql);
+			statementCache.put(sql, statement);
+		}
+
+		for (int i = 0; i < params.length; i++) {
+			statement.setObject(i + 1, params[i]);
+		}
+		return statement;
+	}
+
+	/**
+	 * Records that the connection has been handed out.
+	 *
+	 * @param borrowSite stack trace of the borrower, or null if leak detection is
+	 *                   disabled
+	 */
+	void markBorrowed(Throwable borrowSite) {
+		this.borrowedAt = System.currentTimeMillis();
+		this.borrowSite = borrowSite;
+	}
+
+	/**
+	 * Records that the connection has been given back to the pool.
+	 */
+	void markReturned() {
+		this.lastReturnedAt = System.currentTimeMillis();
+		this.borrowSite = null;
+	}
+
+	/**
+	 * Forgets the borrower's stack trace so a leak is only reported once.
+	 */
+	void clearBorrowSite() {
+		this.borrowSite = null;
+	}
+
+	long getBorrowedAt() {
+		return borrowedAt;
+	}
+
+	long getLastReturnedAt() {
+		return lastReturnedAt;
+	}
+
+	Throwable getBorrowSite() {
+		return borrowSite;
+	}
+
+	/**
+	 * Closes cached statements and the underlying connection. Errors are ignored
+	 * since the connection is being thrown away anyway.
+	 */
+	void close() {
+		for (PreparedStatement statement : statementCache.values()) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// Nothing useful to do, connection is being discarded
+			}
+		}
+		statementCache.clear();
+
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// Same as above
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.alternius.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Times every statement run through DatabaseConnector into a histogram per SQL
+ * template, and logs statements slower than a threshold. SQL is normalized
+ * before it is used as a key, so statements built with literal values still
+ * share a template with their parameterized equivalents.
+ */
+public class QueryStatistics {
+
+	private static final long DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS = 500;
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	// Word boundaries keep digits inside identifiers, e.g. partition names, intact
+	private static final Pattern NUMERIC_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private static final int NORMALIZED_CACHE_LIMIT = 10000;
+
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+	// Normalizing with regexes isn't free, so remember what each raw SQL string
+	// normalized to. Parameterized templates make this a small map.
+	private final Map<String, String> normalizedCache = new ConcurrentHashMap<>();
+
+	private volatile long slowQueryThresholdNanos = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS);
+
+	/**
+	 * Records one execution of a statement.
+	 *
+	 * @param sql   SQL that was executed
+	 * @param nanos time the execution took
+	 */
+	void record(String sql, long nanos) {
+		String template = normalizeCached(sql);
+		histograms.computeIfAbsent(template, key -> new LatencyHistogram())
+				.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+
+		if (nanos >= slowQueryThresholdNanos)
+			System.err.println(String.format("Slow query (%.3fms): %s", nanos / 1000000.0, template));
+	}
+
+	/**
+	 * Returns the statistics for every template executed since the last reset,
+	 * slowest total time first.
+	 *
+	 * @return list of snapshots
+	 */
+	public List<QueryStatsSnapshot> snapshot() {
+		List<QueryStatsSnapshot> snapshots = new ArrayList<>(histograms.size());
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			snapshots.add(new QueryStatsSnapshot(entry.getKey(), entry.getValue()));
+		}
+		snapshots.sort((a, b) -> Long.compare(b.getTotalMicros(), a.getTotalMicros()));
+		return snapshots;
+	}
+
+	/**
+	 * Returns the statistics for a single template.
+	 *
+	 * @param sql SQL of the template, normalized the same way as recorded SQL
+	 * @return snapshot, or null if the template has not been executed
+	 */
+	public QueryStatsSnapshot snapshot(String sql) {
+		String template = normalizeCached(sql);
+		LatencyHistogram histogram = histograms.get(template);
+		return histogram == null ? null : new QueryStatsSnapshot(template, histogram);
+	}
+
+	/**
+	 * Discards everything recorded so far.
+	 */
+	public void reset() {
+		histograms.clear();
+	}
+
+	/**
+	 * Sets how slow a statement must be to be logged.
+	 *
+	 * @param slowQueryThresholdMillis threshold in milliseconds
+	 */
+	public void setSlowQueryThresholdMillis(long slowQueryThresholdMillis) {
+		this.slowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMillis);
+	}
+
+	/**
+	 * Normalizes SQL, remembering the result so the same string is only
+	 * normalized once.
+	 *
+	 * @param sql SQL to normalize
+	 * @return normalized template
+	 */
+	private String normalizeCached(String sql) {
+		String normalized = normalizedCache.get(sql);
+		if (normalized == null) {
+			normalized = normalize(sql);
+			// Statements built by concatenation would grow this forever, so stop
+			// caching once it is big
+			if (normalizedCache.size() < NORMALIZED_CACHE_LIMIT)
+				normalizedCache.put(sql, normalized);
+		}
+		return normalized;
+	}
+
+	/**
+	 * Replaces string and numeric literals with ? and collapses whitespace.
+	 *
+	 * @param sql SQL to normalize
+	 * @return normalized template
+	 */
+	static String normalize(String sql) {
+		String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+		normalized = NUMERIC_LITERAL.matcher(normalized).replaceAll("?");
+		return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+	}
+}
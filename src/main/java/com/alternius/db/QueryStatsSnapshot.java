@@ -0,0 +1,87 @@
+package com.alternius.db;
+
+/**
+ * Latency statistics for one SQL template at the moment they were read.
+ */
+public class QueryStatsSnapshot {
+
+	private final String sql;
+	private final long count;
+	private final long totalMicros;
+	private final long p50Micros;
+	private final long p99Micros;
+	private final long maxMicros;
+
+	QueryStatsSnapshot(String sql, LatencyHistogram histogram) {
+		this.sql = sql;
+		this.count = histogram.getCount();
+		this.totalMicros = histogram.getTotalMicros();
+		this.p50Micros = histogram.getQuantileMicros(0.5);
+		this.p99Micros = histogram.getQuantileMicros(0.99);
+		this.maxMicros = histogram.getMaxMicros();
+	}
+
+	/**
+	 * Returns the normalized SQL template, with literal values replaced by ?.
+	 * 
+	 * @return SQL template
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * Returns the number of times the template was executed.
+	 * 
+	 * @return execution count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the time spent executing the template, summed over every execution.
+	 * 
+	 * @return total time in microseconds
+	 */
+	public long getTotalMicros() {
+		return totalMicros;
+	}
+
+	/**
+	 * Returns the median execution time.
+	 * 
+	 * @return p50 in microseconds
+	 */
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	/**
+	 * Returns the 99th percentile execution time.
+	 * 
+	 * @return p99 in microseconds
+	 */
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	/**
+	 * Returns the slowest execution time.
+	 * 
+	 * @return max in microseconds
+	 */
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	/**
+	 * Formats statistics into format of `count | p50 | p99 | max | SQL`, with times
+	 * in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		return String.format("%d | p50 %.3fms | p99 %.3fms | max %.3fms | %s", count, p50Micros / 1000.0,
+				p99Micros / 1000.0, maxMicros / 1000.0, sql);
+	}
+}
@@ -0,0 +1,23 @@
+package com.alternius.db;
+
+/**
+ * A parameterized statement held on to so it can be sent or replayed later.
+ */
+class QueuedStatement {
+
+	private final String sql;
+	private final Object[] params;
+
+	QueuedStatement(String sql, Object[] params) {
+		this.sql = sql;
+		this.params = params;
+	}
+
+	String getSql() {
+		return sql;
+	}
+
+	Object[] getParams() {
+		return params;
+	}
+}
@@ -0,0 +1,20 @@
+package com.alternius.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Handles rows one at a time as they are streamed from the database, so large
+ * result sets never need to be held in memory.
+ */
+public interface RowCallback {
+
+	/**
+	 * Handles the row the ResultSet is currently positioned on. Must not move the
+	 * cursor or close the ResultSet.
+	 *
+	 * @param rs results positioned on the row to handle
+	 * @throws SQLException
+	 */
+	void processRow(ResultSet rs) throws SQLException;
+}
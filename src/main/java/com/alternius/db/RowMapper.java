@@ -0,0 +1,22 @@
+package com.alternius.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a ResultSet into an object.
+ *
+ * @param <T> type of object produced for each row
+ */
+public interface RowMapper<T> {
+
+	/**
+	 * Maps the row the ResultSet is currently positioned on. Must not move the
+	 * cursor or close the ResultSet.
+	 *
+	 * @param rs results positioned on the row to map
+	 * @return object for the row
+	 * @throws SQLException
+	 */
+	T mapRow(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,252 @@
+package com.alternius.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the metric tables if they do not exist yet and keeps their monthly
+ * partitions created ahead of time.
+ *
+ * Both tables get a primary key matching the lookups made for every
+ * transaction - (origin_group_id, destination_group_id, date) and
+ * (account_group_id, date) - which the upserts also rely on. They are range
+ * partitioned by date, one partition per month, so old months can be detached
+ * or dropped without touching current data. Rows for a month with no partition
+ * yet go to a DEFAULT partition rather than failing, and are moved into their
+ * month's partition when it is created.
+ */
+public class SchemaManager {
+
+	private static final int DEFAULT_MONTHS_AHEAD = 3;
+
+	private static final String CREATE_GROUP_TRANSFER_TABLE = "CREATE TABLE IF NOT EXISTS daily_group_transfer ("
+			+ "origin_group_id BIGINT NOT NULL, destination_group_id BIGINT NOT NULL, date DATE NOT NULL,"
+			+ " sum_transfers BIGINT NOT NULL DEFAULT 0, num_transfers BIGINT NOT NULL DEFAULT 0,"
+			+ " PRIMARY KEY (origin_group_id, destination_group_id, date)) PARTITION BY RANGE (date)";
+	private static final String CREATE_GROUP_TOTAL_TABLE = "CREATE TABLE IF NOT EXISTS total_by_group ("
+			+ "account_group_id BIGINT NOT NULL, date DATE NOT NULL, amount BIGINT NOT NULL DEFAULT 0,"
+			+ " PRIMARY KEY (account_group_id, date)) PARTITION BY RANGE (date)";
+
+	// Tables created before this class existed are not partitioned and may have no
+	// keys at all. They still need unique indexes for the upserts to work.
+	private static final String CREATE_GROUP_TRANSFER_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS daily_group_transfer_key"
+			+ " ON daily_group_transfer (origin_group_id, destination_group_id, date)";
+	private static final String CREATE_GROUP_TOTAL_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS total_by_group_key"
+			+ " ON total_by_group (account_group_id, date)";
+
+	// Amounts used to be DOUBLE PRECISION. They have always been whole numbers
+	// of fen, so rounding them into BIGINT loses nothing.
+	private static final String SELECT_COLUMN_TYPE = "SELECT data_type FROM information_schema.columns"
+			+ " WHERE table_schema = current_schema() AND table_name = ? AND column_name = ?";
+	private static final String[][] AMOUNT_COLUMNS = { { "daily_group_transfer", "sum_transfers" },
+			{ "total_by_group", "amount" } };
+
+	private static final String IS_PARTITIONED = "SELECT EXISTS (SELECT 1 FROM pg_partitioned_table"
+			+ " WHERE partrelid = to_regclass(?))";
+
+	// Name of the table's DEFAULT partition, if it has one
+	private static final String SELECT_DEFAULT_PARTITION = "SELECT partdefid::regclass::text FROM pg_partitioned_table"
+			+ " WHERE partrelid = to_regclass(?) AND partdefid <> 0";
+
+	private static final String[] PARTITIONED_TABLES = { "daily_group_transfer", "total_by_group" };
+
+	private final DatabaseConnector dbConnector;
+
+	private ScheduledExecutorService partitionMaintenance;
+	// Monthly partitions known to exist, so repeated calls for the same dates
+	// don't go back to the database
+	private final Set<String> knownPartitions = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Creates a SchemaManager for the given database.
+	 *
+	 * @param dbConnector instance of DatabaseConnector
+	 */
+	public SchemaManager(DatabaseConnector dbConnector) {
+		this.dbConnector = dbConnector;
+	}
+
+	/**
+	 * Creates both metric tables if they do not exist, along with their DEFAULT
+	 * partitions and partitions for the current month and the next few. Safe to
+	 * run on every startup.
+	 *
+	 * @throws SQLException
+	 */
+	public void createSchema() throws SQLException {
+		dbConnector.executeUpdate(CREATE_GROUP_TRANSFER_TABLE);
+		dbConnector.executeUpdate(CREATE_GROUP_TOTAL_TABLE);
+
+		if (!isPartitioned("daily_group_transfer"))
+			dbConnector.executeUpdate(CREATE_GROUP_TRANSFER_INDEX);
+		if (!isPartitioned("total_by_group"))
+			dbConnector.executeUpdate(CREATE_GROUP_TOTAL_INDEX);
+
+		convertAmountColumns();
+
+		for (String table : PARTITIONED_TABLES) {
+			if (isPartitioned(table))
+				dbConnector.executeUpdate(
+						String.format("CREATE TABLE IF NOT EXISTS %s_default PARTITION OF %s DEFAULT", table, table));
+		}
+
+		createFuturePartitions(DEFAULT_MONTHS_AHEAD);
+	}
+
+	/**
+	 * Creates partitions from the current month up to the given number of months
+	 * ahead, skipping any that already exist.
+	 *
+	 * @param monthsAhead number of months after the current one to create
+	 * @throws SQLException
+	 */
+	public void createFuturePartitions(int monthsAhead) throws SQLException {
+		LocalDate today = LocalDate.now();
+		createPartitions(today, today.plusMonths(monthsAhead));
+	}
+
+	/**
+	 * Creates monthly partitions covering every month from one date to another,
+	 * skipping any that already exist. Rows already in the DEFAULT partition for
+	 * a new month are moved into it. Run this before backfilling a range of dates
+	 * that has no partitions yet - PostgresMetricsStore does so itself for bulk
+	 * loads if given a SchemaManager. Tables that are not partitioned are left
+	 * alone.
+	 *
+	 * @param from first date that needs a partition
+	 * @param to   last date that needs a partition
+	 * @throws SQLException
+	 */
+	public void createPartitions(LocalDate from, LocalDate to) throws SQLException {
+		for (String table : PARTITIONED_TABLES) {
+			if (!isPartitioned(table)) {
+				System.err.println(table + " is not partitioned, skipping partition creation");
+				continue;
+			}
+
+			for (YearMonth month = YearMonth.from(from); !month.isAfter(YearMonth.from(to)); month = month
+					.plusMonths(1)) {
+				createPartition(table, month);
+			}
+		}
+	}
+
+	/**
+	 * Creates one month's partition of a table. If the DEFAULT partition already
+	 * holds rows for that month, PostgreSQL won't attach a partition over them, so
+	 * they are moved into a new table which is then attached in their place, all
+	 * in one transaction.
+	 */
+	private void createPartition(String table, YearMonth month) throws SQLException {
+		String partition = String.format("%s_%d_%02d", table, month.getYear(), month.getMonthValue());
+		if (knownPartitions.contains(partition))
+			return;
+
+		// DDL can't take bind parameters, but every value here comes from a YearMonth
+		// or the catalog
+		LocalDate start = month.atDay(1);
+		LocalDate end = month.plusMonths(1).atDay(1);
+		List<String> defaultPartition = dbConnector.query(SELECT_DEFAULT_PARTITION, rs -> rs.getString(1), table);
+		boolean inDefault = !defaultPartition.isEmpty()
+				&& dbConnector
+						.query(String.format("SELECT EXISTS (SELECT 1 FROM %s WHERE date >= ? AND date < ?)",
+								defaultPartition.get(0)), rs -> rs.getBoolean(1), start, end)
+						.get(0);
+
+		if (!inDefault) {
+			dbConnector.executeUpdate(
+					String.format("CREATE TABLE IF NOT EXISTS %s PARTITION OF %s FOR VALUES FROM ('%s') TO ('%s')",
+							partition, table, start, end));
+		} else {
+			String from = defaultPartition.get(0);
+			System.out.println("Moving rows for " + month + " out of " + from + " into " + partition);
+			dbConnector.withConnection(pooled -> {
+				Connection connection = pooled.getConnection();
+				connection.setAutoCommit(false);
+				try (Statement statement = connection.createStatement()) {
+					// Keeps writers out of the default partition until the month is attached
+					statement.execute(String.format("LOCK TABLE %s IN EXCLUSIVE MODE", from));
+					statement.execute(String.format("CREATE TABLE %s (LIKE %s INCLUDING DEFAULTS)", partition, table));
+					statement.execute(String.format("INSERT INTO %s SELECT * FROM %s WHERE date >= '%s' AND date < '%s'",
+							partition, from, start, end));
+					statement.execute(
+							String.format("DELETE FROM %s WHERE date >= '%s' AND date < '%s'", from, start, end));
+					statement.execute(String.format("ALTER TABLE %s ATTACH PARTITION %s FOR VALUES FROM ('%s') TO ('%s')",
+							table, partition, start, end));
+					connection.commit();
+				} catch (SQLException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(true);
+				}
+				return null;
+			});
+		}
+		knownPartitions.add(partition);
+	}
+
+	/**
+	 * Starts a background task that creates upcoming partitions once a day, so
+	 * long-running processes never write to a month without one.
+	 *
+	 * @param monthsAhead number of months after the current one to keep created
+	 */
+	public synchronized void startPartitionMaintenance(int monthsAhead) {
+		if (partitionMaintenance != null)
+			return;
+
+		partitionMaintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "partition-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		partitionMaintenance.scheduleAtFixedRate(() -> {
+			try {
+				createFuturePartitions(monthsAhead);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}, 0, 1, TimeUnit.DAYS);
+	}
+
+	/**
+	 * Stops the background partition task if it is running.
+	 */
+	public synchronized void stopPartitionMaintenance() {
+		if (partitionMaintenance != null) {
+			partitionMaintenance.shutdownNow();
+			partitionMaintenance = null;
+		}
+	}
+
+	/**
+	 * Converts amount columns left as DOUBLE PRECISION by earlier versions to
+	 * BIGINT. Rewrites the whole table, so only happens once.
+	 */
+	private void convertAmountColumns() throws SQLException {
+		for (String[] column : AMOUNT_COLUMNS) {
+			List<String> type = dbConnector.query(SELECT_COLUMN_TYPE, rs -> rs.getString(1), column[0], column[1]);
+			if (!type.isEmpty() && "double precision".equals(type.get(0))) {
+				System.out.println("Converting " + column[0] + "." + column[1] + " to BIGINT");
+				// Table and column names are the constants above
+				dbConnector.executeUpdate(String.format("ALTER TABLE %s ALTER COLUMN %s TYPE BIGINT USING round(%s)",
+						column[0], column[1], column[1]));
+			}
+		}
+	}
+
+	private boolean isPartitioned(String table) throws SQLException {
+		List<Boolean> result = dbConnector.query(IS_PARTITIONED, rs -> rs.getBoolean(1), table);
+		return !result.isEmpty() && result.get(0);
+	}
+}
@@ -0,0 +1,63 @@
+package com.alternius.models;
+
+import java.time.LocalDate;
+
+/**
+ * Balance of an account group on a given day - a row of total_by_group. Also
+ * used to carry a change to that balance.
+ */
+public class GroupBalance {
+
+	private long groupId;
+	private LocalDate date;
+
+	private long amount;
+
+	/**
+	 * Creates an instance of a GroupBalance.
+	 * 
+	 * @param groupId long ID of group from account_group in database
+	 * @param date    date of the balance
+	 * @param amount  balance in fen, or change in balance
+	 */
+	public GroupBalance(long groupId, LocalDate date, long amount) {
+		this.groupId = groupId;
+		this.date = date;
+		this.amount = amount;
+	}
+
+	/**
+	 * Returns the ID of the group.
+	 * 
+	 * @return group ID
+	 */
+	public long getGroupId() {
+		return groupId;
+	}
+
+	/**
+	 * Returns the date of the balance.
+	 * 
+	 * @return LocalDate of balance
+	 */
+	public LocalDate getDate() {
+		return date;
+	}
+
+	/**
+	 * Returns the balance, or change in balance, in fen.
+	 * 
+	 * @return long amount
+	 */
+	public long getAmount() {
+		return amount;
+	}
+
+	/**
+	 * Formats balance into format of `group ID | date | amount`.
+	 */
+	@Override
+	public String toString() {
+		return String.format("%d | %s | %d", groupId, date, amount);
+	}
+}
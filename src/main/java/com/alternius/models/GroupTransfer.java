@@ -0,0 +1,89 @@
+package com.alternius.models;
+
+import java.time.LocalDate;
+
+/**
+ * Total transfers from one account group to another on a given day - a row of
+ * daily_group_transfer.
+ */
+public class GroupTransfer {
+
+	private LocalDate date;
+	private long originGroupId;
+	private long destinationGroupId;
+
+	private long sumTransfers;
+	private long numTransfers;
+
+	/**
+	 * Creates an instance of a GroupTransfer.
+	 * 
+	 * @param date               date the transfers were made
+	 * @param originGroupId      long ID of the sending group
+	 * @param destinationGroupId long ID of the receiving group
+	 * @param sumTransfers       total amount transferred, in fen
+	 * @param numTransfers       number of transfers made
+	 */
+	public GroupTransfer(LocalDate date, long originGroupId, long destinationGroupId, long sumTransfers,
+			long numTransfers) {
+		this.date = date;
+		this.originGroupId = originGroupId;
+		this.destinationGroupId = destinationGroupId;
+		this.sumTransfers = sumTransfers;
+		this.numTransfers = numTransfers;
+	}
+
+	/**
+	 * Returns the date the transfers were made.
+	 * 
+	 * @return LocalDate of transfers
+	 */
+	public LocalDate getDate() {
+		return date;
+	}
+
+	/**
+	 * Returns the ID of the sending group.
+	 * 
+	 * @return origin group ID
+	 */
+	public long getOriginGroupId() {
+		return originGroupId;
+	}
+
+	/**
+	 * Returns the ID of the receiving group.
+	 * 
+	 * @return destination group ID
+	 */
+	public long getDestinationGroupId() {
+		return destinationGroupId;
+	}
+
+	/**
+	 * Returns the total amount transferred, in fen.
+	 * 
+	 * @return long sum of transfers
+	 */
+	public long getSumTransfers() {
+		return sumTransfers;
+	}
+
+	/**
+	 * Returns the number of transfers made.
+	 * 
+	 * @return long number of transfers
+	 */
+	public long getNumTransfers() {
+		return numTransfers;
+	}
+
+	/**
+	 * Formats transfer into format of `date | origin -> destination | sum (count)`.
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s | %d -> %d | %d (%d)", date, originGroupId, destinationGroupId, sumTransfers,
+				numTransfers);
+	}
+}
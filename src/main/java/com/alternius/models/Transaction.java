@@ -3,14 +3,15 @@ package com.alternius.models;
 import java.time.LocalDate;
 
 /**
- * Represents a transfer of yuans between two accounts.
+ * Represents a transfer of yuans between two accounts. Amounts are whole
+ * numbers of fen (hundredths of a yuan), so they add up exactly.
  */
 public class Transaction {
 
 	private Account sender;
 	private Account recipient;
 
-	private double amount;
+	private long amount;
 	private long id;
 
 	private LocalDate date;
@@ -19,12 +20,12 @@ public class Transaction {
 	 * Creates an instance of a Transaction.
 	 * 
 	 * @param id        long ID of transaction
-	 * @param amount    amount of yuans transferred
+	 * @param amount    amount transferred, in fen
 	 * @param sender    Account of sender
 	 * @param recipient Account of recipient
 	 * @param date      date the transaction was completed
 	 */
-	public Transaction(long id, double amount, Account sender, Account recipient, LocalDate date) {
+	public Transaction(long id, long amount, Account sender, Account recipient, LocalDate date) {
 		this.id = id;
 		this.amount = amount;
 		this.sender = sender;
@@ -51,11 +52,11 @@ public class Transaction {
 	}
 
 	/**
-	 * Returns the amount of yuans transferred in the transaction.
+	 * Returns the amount transferred in the transaction, in fen.
 	 * 
-	 * @return double amount
+	 * @return long amount
 	 */
-	public double getAmount() {
+	public long getAmount() {
 		return amount;
 	}
 
@@ -82,6 +83,6 @@ public class Transaction {
 	 */
 	@Override
 	public String toString() {
-		return String.format("%d | %f | %d -> %d", id, amount, sender.getId(), recipient.getId());
+		return String.format("%d | %d | %d -> %d", id, amount, sender.getId(), recipient.getId());
 	}
 }
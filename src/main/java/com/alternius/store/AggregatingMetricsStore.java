@@ -0,0 +1,199 @@
+package com.alternius.store;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
+
+/**
+ * Wraps another MetricsStore, summing group transfers in memory and writing
+ * them behind. All transfers between the same two groups on the same day
+ * within a flush window become a single row write, and with only a handful of
+ * groups that is a tiny fraction of the transfers processed.
+ *
+ * Totals are written on a schedule, when the number of pending day and group
+ * pair totals reaches a threshold, and on flush(). Balance changes are passed
+ * straight through, since each new day's balance row depends on the one before
+ * it. Transfer totals in the wrapped store therefore lag behind by up to one
+ * flush interval, and totals not yet written are lost if the process dies -
+ * call close() on shutdown.
+ */
+public class AggregatingMetricsStore implements MetricsStore {
+
+	private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+	private static final int DEFAULT_MAX_PENDING_TOTALS = 10000;
+
+	private final MetricsStore delegate;
+	private final int maxPendingTotals;
+
+	// Guards the accumulator. Only held while adding or draining, never while
+	// writing to the wrapped store.
+	private final Object accumulatorLock = new Object();
+	private final GroupTransferAccumulator accumulator = new GroupTransferAccumulator();
+	// Held while writing drained totals so flushes reach the store in order
+	private final Object flushLock = new Object();
+
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * Wraps a store, writing transfer totals every second or once 10000 are
+	 * pending.
+	 *
+	 * @param delegate store to write to
+	 */
+	public AggregatingMetricsStore(MetricsStore delegate) {
+		this(delegate, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_PENDING_TOTALS);
+	}
+
+	/**
+	 * Wraps a store.
+	 *
+	 * @param delegate            store to write to
+	 * @param flushIntervalMillis how often pending transfer totals are written
+	 * @param maxPendingTotals    number of pending day and group pair totals that
+	 *                            triggers a write straight away
+	 */
+	public AggregatingMetricsStore(MetricsStore delegate, long flushIntervalMillis, int maxPendingTotals) {
+		this.delegate = delegate;
+		this.maxPendingTotals = maxPendingTotals;
+
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-aggregator-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void addGroupTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount,
+			long count) throws SQLException {
+		boolean full;
+		synchronized (accumulatorLock) {
+			accumulator.add(date, originGroupId, destinationGroupId, amount, count);
+			full = accumulator.size() >= maxPendingTotals;
+		}
+
+		if (full)
+			flushTransfers();
+	}
+
+	@Override
+	public void addGroupBalance(long groupId, LocalDate date, long amount) throws SQLException {
+		delegate.addGroupBalance(groupId, date, amount);
+	}
+
+	@Override
+	public void recordTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount)
+			throws SQLException {
+		addGroupTransfer(date, originGroupId, destinationGroupId, amount, 1);
+		delegate.addGroupBalance(originGroupId, date, -amount);
+		delegate.addGroupBalance(destinationGroupId, date, amount);
+	}
+
+	/**
+	 * Passed straight through - bulk loads are already aggregated.
+	 */
+	@Override
+	public void bulkLoad(Collection<GroupTransfer> transfers, Collection<GroupBalance> balances)
+			throws SQLException {
+		delegate.bulkLoad(transfers, balances);
+	}
+
+	/**
+	 * Units only cover the balance changes, since transfers are written later on
+	 * their own.
+	 */
+	@Override
+	public void beginUnit() throws SQLException {
+		delegate.beginUnit();
+	}
+
+	@Override
+	public void endUnit() throws SQLException {
+		delegate.endUnit();
+	}
+
+	@Override
+	public void abortUnit() {
+		delegate.abortUnit();
+	}
+
+	/**
+	 * Writes every pending transfer total, then flushes the wrapped store.
+	 */
+	@Override
+	public void flush() throws SQLException {
+		flushTransfers();
+		delegate.flush();
+	}
+
+	/**
+	 * Stops the scheduled flush and writes anything still pending.
+	 *
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException {
+		flusher.shutdownNow();
+		flush();
+	}
+
+	/**
+	 * Returns the number of day and group pair totals waiting to be written.
+	 *
+	 * @return number of pending totals
+	 */
+	public int getPendingCount() {
+		synchronized (accumulatorLock) {
+			return accumulator.size();
+		}
+	}
+
+	/**
+	 * Writes the pending transfer totals to the wrapped store. If a write fails,
+	 * the totals that were not written go back into the accumulator to be retried
+	 * on the next flush.
+	 *
+	 * @throws SQLException
+	 */
+	private void flushTransfers() throws SQLException {
+		synchronized (flushLock) {
+			List<GroupTransfer> transfers;
+			synchronized (accumulatorLock) {
+				transfers = accumulator.drain();
+			}
+
+			for (int i = 0; i < transfers.size(); i++) {
+				GroupTransfer transfer = transfers.get(i);
+				try {
+					delegate.addGroupTransfer(transfer.getDate(), transfer.getOriginGroupId(),
+							transfer.getDestinationGroupId(), transfer.getSumTransfers(), transfer.getNumTransfers());
+				} catch (SQLException e) {
+					requeue(transfers.subList(i, transfers.size()));
+					throw e;
+				}
+			}
+		}
+	}
+
+	private void requeue(List<GroupTransfer> transfers) {
+		synchronized (accumulatorLock) {
+			for (GroupTransfer transfer : transfers) {
+				accumulator.add(transfer.getDate(), transfer.getOriginGroupId(), transfer.getDestinationGroupId(),
+						transfer.getSumTransfers(), transfer.getNumTransfers());
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.alternius.store;
+
+/**
+ * Stops calls to a failing dependency for a while so it has time to recover,
+ * rather than piling more load onto it.
+ *
+ * The breaker starts CLOSED and lets every call through. After enough
+ * consecutive failures it OPENs and rejects calls until the open duration has
+ * passed. It then goes HALF_OPEN and lets a single call through on trial - its
+ * success closes the breaker, its failure opens it again. Other calls are
+ * rejected while the trial runs. A trial that never reports back is given up
+ * on after another open duration, and a new one allowed.
+ */
+public class CircuitBreaker {
+
+	/**
+	 * State of the breaker.
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openDurationMillis;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	// Whether a HALF_OPEN trial call is running, and since when
+	private boolean trialInProgress;
+	private long trialStartedAt;
+
+	/**
+	 * Creates a closed breaker.
+	 * 
+	 * @param failureThreshold   number of consecutive failures that opens the
+	 *                           breaker
+	 * @param openDurationMillis how long the breaker stays open before calls are
+	 *                           tried again
+	 */
+	public CircuitBreaker(int failureThreshold, long openDurationMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openDurationMillis = openDurationMillis;
+	}
+
+	/**
+	 * Returns whether a call should be attempted right now. Moves an open breaker
+	 * to HALF_OPEN once its open duration has passed. While HALF_OPEN, only the
+	 * trial call is allowed, and the caller must report its outcome with
+	 * recordSuccess() or recordFailure().
+	 * 
+	 * @return true if the call may go ahead
+	 */
+	public synchronized boolean allowRequest() {
+		long now = System.currentTimeMillis();
+		if (state == State.OPEN && now - openedAt >= openDurationMillis)
+			state = State.HALF_OPEN;
+
+		if (state == State.CLOSED)
+			return true;
+		if (state == State.OPEN || (trialInProgress && now - trialStartedAt < openDurationMillis))
+			return false;
+
+		trialInProgress = true;
+		trialStartedAt = now;
+		return true;
+	}
+
+	/**
+	 * Records a successful call, closing the breaker.
+	 */
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+		trialInProgress = false;
+	}
+
+	/**
+	 * Records a failed call, opening the breaker if this was a trial call or the
+	 * failure threshold has been reached.
+	 */
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		trialInProgress = false;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Returns the current state, without moving an open breaker on.
+	 * 
+	 * @return State
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+}
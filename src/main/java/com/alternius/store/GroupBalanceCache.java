@@ -0,0 +1,179 @@
+package com.alternius.store;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Running balance of every group as of the latest day it has a balance for,
+ * so a new day's balance can be opened without looking up the previous day in
+ * the database. Only correct while the store using it is the only writer of
+ * balances - anything else that changes them must call invalidate().
+ *
+ * Each method locks the cache for itself. Hold lock() across several calls
+ * that have to see the cache unchanged, e.g. loading it. A ReentrantLock
+ * rather than synchronized, since the cache is loaded from the database while
+ * it is locked and a virtual thread blocking inside a synchronized block pins
+ * its carrier thread.
+ */
+class GroupBalanceCache {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<Long, Balance> balances = new HashMap<>();
+	private boolean loaded;
+	// Latest day any group has been rolled over to or loaded with
+	private LocalDate openDay;
+
+	/**
+	 * Locks the cache until unlock(), keeping other threads from using it.
+	 */
+	void lock() {
+		lock.lock();
+	}
+
+	void unlock() {
+		lock.unlock();
+	}
+
+	/**
+	 * Returns whether the cache has been loaded since it was created or last
+	 * invalidated.
+	 *
+	 * @return true if loaded
+	 */
+	boolean isLoaded() {
+		lock.lock();
+		try {
+			return loaded;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a group's latest stored balance while loading. Call markLoaded() once
+	 * every group has been added.
+	 *
+	 * @param groupId ID of the group
+	 * @param date    latest day the group has a balance for
+	 * @param opening balance at the end of the group's previous day
+	 * @param closing balance at the end of the latest day
+	 */
+	void put(long groupId, LocalDate date, long opening, long closing) {
+		lock.lock();
+		try {
+			Balance balance = new Balance();
+			balance.date = date;
+			balance.opening = opening;
+			balance.closing = closing;
+			balances.put(groupId, balance);
+			if (openDay == null || date.isAfter(openDay))
+				openDay = date;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void markLoaded() {
+		lock.lock();
+		try {
+			loaded = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Throws away everything cached, e.g. because a write may not have reached
+	 * the database. The cache has to be loaded again before it is used.
+	 */
+	void invalidate() {
+		lock.lock();
+		try {
+			balances.clear();
+			loaded = false;
+			openDay = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Seals the open day if the given date is after it. Every group's closing
+	 * balance becomes its opening balance for the new day, so the new day's rows
+	 * can be opened for all groups at once rather than as each group's first
+	 * transaction of the day comes in.
+	 *
+	 * @param date date of a balance about to be added
+	 * @return ID of every group opened for the new day if a day was sealed,
+	 *         otherwise null
+	 */
+	Set<Long> rollOver(LocalDate date) {
+		lock.lock();
+		try {
+			if (openDay == null) {
+				openDay = date;
+				return null;
+			}
+			if (!date.isAfter(openDay))
+				return null;
+
+			Set<Long> openedGroupIds = new HashSet<>(balances.size() * 2);
+			for (Map.Entry<Long, Balance> entry : balances.entrySet()) {
+				Balance balance = entry.getValue();
+				if (balance.date.isBefore(date)) {
+					balance.date = date;
+					balance.opening = balance.closing;
+					openedGroupIds.add(entry.getKey());
+				}
+			}
+			openDay = date;
+			return openedGroupIds;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an amount to a group's balance for a day and returns the balance the
+	 * day opened with, i.e. the closing balance of the group's previous day.
+	 *
+	 * @param groupId ID of the group
+	 * @param date    date of the balance
+	 * @param amount  amount being added to the balance
+	 * @return opening balance for the day, or null if the day is earlier than the
+	 *         latest day cached for the group and has to be looked up
+	 */
+	Long add(long groupId, LocalDate date, long amount) {
+		lock.lock();
+		try {
+			Balance balance = balances.get(groupId);
+			if (balance == null) {
+				// First balance the group has ever had
+				balance = new Balance();
+				balance.date = date;
+				balances.put(groupId, balance);
+			} else if (date.isAfter(balance.date)) {
+				balance.date = date;
+				balance.opening = balance.closing;
+			} else if (date.isBefore(balance.date)) {
+				// A late change - the previous day has to be looked up in the database
+				return null;
+			}
+
+			balance.closing += amount;
+			return balance.opening;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static class Balance {
+		LocalDate date;
+		long opening;
+		long closing;
+	}
+}
@@ -0,0 +1,55 @@
+package com.alternius.store;
+
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * Identifies a row of total_by_group - a group and a day. Usable as a map key.
+ */
+public final class GroupBalanceKey {
+
+	private final long groupId;
+	private final LocalDate date;
+
+	/**
+	 * Creates a key for a group's balance on a day.
+	 * 
+	 * @param groupId ID of the group
+	 * @param date    date of the balance
+	 */
+	public GroupBalanceKey(long groupId, LocalDate date) {
+		this.groupId = groupId;
+		this.date = date;
+	}
+
+	/**
+	 * Returns the ID of the group.
+	 * 
+	 * @return group ID
+	 */
+	public long getGroupId() {
+		return groupId;
+	}
+
+	/**
+	 * Returns the date of the balance.
+	 * 
+	 * @return LocalDate of balance
+	 */
+	public LocalDate getDate() {
+		return date;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GroupBalanceKey))
+			return false;
+		GroupBalanceKey other = (GroupBalanceKey) o;
+		return groupId == other.groupId && date.equals(other.date);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(groupId, date);
+	}
+}
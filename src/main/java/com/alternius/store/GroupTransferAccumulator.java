@@ -0,0 +1,169 @@
+package com.alternius.store;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.alternius.models.GroupTransfer;
+
+/**
+ * Sums transfers per day and group pair until they are drained. Not
+ * thread-safe.
+ *
+ * Group IDs are small, dense integers, so the current day's totals live in a
+ * matrix of primitive arrays indexed by origin x destination - adding a
+ * transfer is two array writes with no hashing or boxing. Transfers for other
+ * days, or between groups with IDs too large for the matrix, go to a
+ * GroupTransferTable instead.
+ */
+class GroupTransferAccumulator {
+
+	private static final int INITIAL_DIMENSION = 16;
+	// 256 x 256 cells is about 1MB across both arrays. Larger IDs use the table.
+	private static final int MAX_DIMENSION = 256;
+
+	// The day the matrix holds totals for, or null before the first transfer
+	private LocalDate currentDate;
+	private long currentEpochDay;
+	// Totals for origin o and destination d are at index o * dimension + d
+	private int dimension = INITIAL_DIMENSION;
+	private long[] sums = new long[INITIAL_DIMENSION * INITIAL_DIMENSION];
+	private long[] counts = new long[INITIAL_DIMENSION * INITIAL_DIMENSION];
+	// Which cells have been added to since the last drain, and their indexes in
+	// the order they were first used, so draining doesn't scan the whole matrix
+	private boolean[] touched = new boolean[INITIAL_DIMENSION * INITIAL_DIMENSION];
+	private int[] touchedCells = new int[INITIAL_DIMENSION];
+	private int touchedCount;
+
+	private final GroupTransferTable overflow = new GroupTransferTable();
+
+	/**
+	 * Adds transfers between two groups to the day's totals.
+	 *
+	 * @param date               date of the transfers
+	 * @param originGroupId      ID of the sending group
+	 * @param destinationGroupId ID of the receiving group
+	 * @param amount             total amount transferred
+	 * @param count              number of transfers
+	 */
+	void add(LocalDate date, long originGroupId, long destinationGroupId, long amount, long count) {
+		if (currentDate == null || date.isAfter(currentDate)) {
+			// A new day - the previous day's totals won't be added to much from now on
+			moveMatrixToOverflow();
+			currentDate = date;
+			currentEpochDay = date.toEpochDay();
+		}
+
+		if (!date.equals(currentDate) || !fitsMatrix(originGroupId, destinationGroupId)) {
+			overflow.add(date.toEpochDay(), originGroupId, destinationGroupId, amount, count);
+			return;
+		}
+
+		int cell = (int) originGroupId * dimension + (int) destinationGroupId;
+		if (!touched[cell])
+			touch(cell);
+		sums[cell] += amount;
+		counts[cell] += count;
+	}
+
+	/**
+	 * Returns the totals added since the last drain, one per day and group pair,
+	 * and starts again from empty.
+	 *
+	 * @return accumulated totals
+	 */
+	List<GroupTransfer> drain() {
+		List<GroupTransfer> transfers = new ArrayList<>(size());
+		for (int i = 0; i < touchedCount; i++) {
+			int cell = touchedCells[i];
+			transfers.add(new GroupTransfer(currentDate, cell / dimension, cell % dimension, sums[cell],
+					counts[cell]));
+		}
+		clearMatrix();
+		overflow.drainTo(transfers);
+		return transfers;
+	}
+
+	/**
+	 * Returns the number of day and group pair totals waiting to be drained.
+	 *
+	 * @return number of totals
+	 */
+	int size() {
+		return touchedCount + overflow.size();
+	}
+
+	/**
+	 * Checks whether both IDs fit the matrix, growing it if they would fit within
+	 * the maximum size.
+	 */
+	private boolean fitsMatrix(long originGroupId, long destinationGroupId) {
+		if (originGroupId < 0 || destinationGroupId < 0)
+			return false;
+
+		long largest = Math.max(originGroupId, destinationGroupId);
+		if (largest < dimension)
+			return true;
+		if (largest >= MAX_DIMENSION)
+			return false;
+
+		int newDimension = dimension;
+		while (newDimension <= largest) {
+			newDimension *= 2;
+		}
+		grow(Math.min(newDimension, MAX_DIMENSION));
+		return true;
+	}
+
+	/**
+	 * Copies the matrix into a wider one, keeping every cell at the same origin
+	 * and destination.
+	 */
+	private void grow(int newDimension) {
+		long[] newSums = new long[newDimension * newDimension];
+		long[] newCounts = new long[newDimension * newDimension];
+		boolean[] newTouched = new boolean[newDimension * newDimension];
+		for (int i = 0; i < touchedCount; i++) {
+			int cell = touchedCells[i];
+			int newCell = (cell / dimension) * newDimension + cell % dimension;
+			newSums[newCell] = sums[cell];
+			newCounts[newCell] = counts[cell];
+			newTouched[newCell] = true;
+			touchedCells[i] = newCell;
+		}
+
+		dimension = newDimension;
+		sums = newSums;
+		counts = newCounts;
+		touched = newTouched;
+	}
+
+	private void touch(int cell) {
+		touched[cell] = true;
+		if (touchedCount == touchedCells.length)
+			touchedCells = Arrays.copyOf(touchedCells, touchedCells.length * 2);
+		touchedCells[touchedCount++] = cell;
+	}
+
+	private void moveMatrixToOverflow() {
+		for (int i = 0; i < touchedCount; i++) {
+			int cell = touchedCells[i];
+			overflow.add(currentEpochDay, cell / dimension, cell % dimension, sums[cell], counts[cell]);
+		}
+		clearMatrix();
+	}
+
+	/**
+	 * Zeroes the cells that were used rather than the whole matrix.
+	 */
+	private void clearMatrix() {
+		for (int i = 0; i < touchedCount; i++) {
+			int cell = touchedCells[i];
+			sums[cell] = 0;
+			counts[cell] = 0;
+			touched[cell] = false;
+		}
+		touchedCount = 0;
+	}
+}
@@ -0,0 +1,69 @@
+package com.alternius.store;
+
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * Identifies a row of daily_group_transfer - the day and the pair of groups
+ * involved. Usable as a map key.
+ */
+public final class GroupTransferKey {
+
+	private final LocalDate date;
+	private final long originGroupId;
+	private final long destinationGroupId;
+
+	/**
+	 * Creates a key for transfers between two groups on a day.
+	 * 
+	 * @param date               date of the transfers
+	 * @param originGroupId      ID of the sending group
+	 * @param destinationGroupId ID of the receiving group
+	 */
+	public GroupTransferKey(LocalDate date, long originGroupId, long destinationGroupId) {
+		this.date = date;
+		this.originGroupId = originGroupId;
+		this.destinationGroupId = destinationGroupId;
+	}
+
+	/**
+	 * Returns the date of the transfers.
+	 * 
+	 * @return LocalDate of transfers
+	 */
+	public LocalDate getDate() {
+		return date;
+	}
+
+	/**
+	 * Returns the ID of the sending group.
+	 * 
+	 * @return origin group ID
+	 */
+	public long getOriginGroupId() {
+		return originGroupId;
+	}
+
+	/**
+	 * Returns the ID of the receiving group.
+	 * 
+	 * @return destination group ID
+	 */
+	public long getDestinationGroupId() {
+		return destinationGroupId;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GroupTransferKey))
+			return false;
+		GroupTransferKey other = (GroupTransferKey) o;
+		return originGroupId == other.originGroupId && destinationGroupId == other.destinationGroupId
+				&& date.equals(other.date);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(date, originGroupId, destinationGroupId);
+	}
+}
@@ -0,0 +1,141 @@
+package com.alternius.store;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import com.alternius.models.GroupTransfer;
+
+/**
+ * Open-addressing hash table of transfer totals keyed by day and group pair,
+ * using parallel primitive arrays so adding to a total needs no key objects or
+ * boxing. Used for the totals that don't fit GroupTransferAccumulator's dense
+ * matrix. Not thread-safe.
+ */
+class GroupTransferTable {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// Slot i holds the key (dates[i], origins[i], destinations[i]) if used[i]
+	private long[] dates;
+	private long[] origins;
+	private long[] destinations;
+	private long[] sums;
+	private long[] counts;
+	private boolean[] used;
+	private int size;
+
+	GroupTransferTable() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Adds transfers to the totals for a day and group pair.
+	 *
+	 * @param epochDay           date of the transfers as LocalDate.toEpochDay()
+	 * @param originGroupId      ID of the sending group
+	 * @param destinationGroupId ID of the receiving group
+	 * @param amount             total amount transferred
+	 * @param count              number of transfers
+	 */
+	void add(long epochDay, long originGroupId, long destinationGroupId, long amount, long count) {
+		int slot = slotFor(epochDay, originGroupId, destinationGroupId);
+		if (!used[slot]) {
+			used[slot] = true;
+			dates[slot] = epochDay;
+			origins[slot] = originGroupId;
+			destinations[slot] = destinationGroupId;
+			size++;
+		}
+		sums[slot] += amount;
+		counts[slot] += count;
+
+		// Keep at most half the slots used so probe sequences stay short
+		if (size * 2 > used.length)
+			resize(used.length * 2);
+	}
+
+	/**
+	 * Adds every total to the given list and empties the table.
+	 *
+	 * @param transfers list to add the totals to
+	 */
+	void drainTo(List<GroupTransfer> transfers) {
+		if (size == 0)
+			return;
+
+		for (int slot = 0; slot < used.length; slot++) {
+			if (used[slot])
+				transfers.add(new GroupTransfer(LocalDate.ofEpochDay(dates[slot]), origins[slot], destinations[slot],
+						sums[slot], counts[slot]));
+		}
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns the number of day and group pair totals held.
+	 *
+	 * @return number of totals
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the slot holding a key, or the empty slot where it should go, by
+	 * linear probing.
+	 */
+	private int slotFor(long epochDay, long originGroupId, long destinationGroupId) {
+		int mask = used.length - 1;
+		int slot = hash(epochDay, originGroupId, destinationGroupId) & mask;
+		while (used[slot] && (dates[slot] != epochDay || origins[slot] != originGroupId
+				|| destinations[slot] != destinationGroupId)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(long epochDay, long originGroupId, long destinationGroupId) {
+		long hash = epochDay;
+		hash = hash * 31 + originGroupId;
+		hash = hash * 31 + destinationGroupId;
+		// Spread the bits, since the IDs are small and close together
+		hash *= 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	private void resize(int capacity) {
+		long[] oldDates = dates;
+		long[] oldOrigins = origins;
+		long[] oldDestinations = destinations;
+		long[] oldSums = sums;
+		long[] oldCounts = counts;
+		boolean[] oldUsed = used;
+
+		allocate(capacity);
+		for (int slot = 0; slot < oldUsed.length; slot++) {
+			if (oldUsed[slot]) {
+				int newSlot = slotFor(oldDates[slot], oldOrigins[slot], oldDestinations[slot]);
+				used[newSlot] = true;
+				dates[newSlot] = oldDates[slot];
+				origins[newSlot] = oldOrigins[slot];
+				destinations[newSlot] = oldDestinations[slot];
+				sums[newSlot] = oldSums[slot];
+				counts[newSlot] = oldCounts[slot];
+				size++;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the arrays with empty ones. Capacity must be a power of two.
+	 */
+	private void allocate(int capacity) {
+		dates = new long[capacity];
+		origins = new long[capacity];
+		destinations = new long[capacity];
+		sums = new long[capacity];
+		counts = new long[capacity];
+		used = new boolean[capacity];
+		size = 0;
+	}
+}
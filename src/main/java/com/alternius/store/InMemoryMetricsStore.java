@@ -0,0 +1,149 @@
+package com.alternius.store;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
+
+/**
+ * Keeps metrics in memory with the same semantics as the database tables. Used
+ * to run or benchmark the processing logic without a live database, and as a
+ * reference when checking what a real store should contain.
+ */
+public class InMemoryMetricsStore implements MetricsStore {
+
+	// Index 0 is the sum of transfers, index 1 the number of transfers. Arrays are
+	// guarded by their own monitor so sum and count are always read together.
+	private final Map<GroupTransferKey, long[]> groupTransfers = new ConcurrentHashMap<>();
+	// Balances per group, ordered by date so a new day can be seeded from the
+	// previous one. Each group's map is guarded by its own monitor.
+	private final Map<Long, TreeMap<LocalDate, Long>> groupBalances = new ConcurrentHashMap<>();
+
+	@Override
+	public void addGroupTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount,
+			long count) {
+		groupTransfers.compute(new GroupTransferKey(date, originGroupId, destinationGroupId), (key, totals) -> {
+			if (totals == null)
+				totals = new long[2];
+			synchronized (totals) {
+				totals[0] += amount;
+				totals[1] += count;
+			}
+			return totals;
+		});
+	}
+
+	@Override
+	public void addGroupBalance(long groupId, LocalDate date, long amount) {
+		TreeMap<LocalDate, Long> balances = balancesFor(groupId);
+		synchronized (balances) {
+			balances.put(date, openBalance(balances, date));
+			carryForward(balances, date, amount);
+		}
+	}
+
+	@Override
+	public void bulkLoad(Collection<GroupTransfer> transfers, Collection<GroupBalance> balances) {
+		for (GroupTransfer transfer : transfers) {
+			addGroupTransfer(transfer.getDate(), transfer.getOriginGroupId(), transfer.getDestinationGroupId(),
+					transfer.getSumTransfers(), transfer.getNumTransfers());
+		}
+
+		for (GroupBalance balance : balances) {
+			TreeMap<LocalDate, Long> groupBalances = balancesFor(balance.getGroupId());
+			synchronized (groupBalances) {
+				groupBalances.put(balance.getDate(), openBalance(groupBalances, balance.getDate()));
+				carryForward(groupBalances, balance.getDate(), balance.getAmount());
+			}
+		}
+	}
+
+	/**
+	 * Nothing to do - changes are applied as soon as they are added.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Returns the totals stored for transfers between two groups on a day.
+	 * 
+	 * @param date               date of the transfers
+	 * @param originGroupId      ID of the sending group
+	 * @param destinationGroupId ID of the receiving group
+	 * @return GroupTransfer, or null if there were no transfers
+	 */
+	public GroupTransfer getGroupTransfer(LocalDate date, long originGroupId, long destinationGroupId) {
+		long[] totals = groupTransfers.get(new GroupTransferKey(date, originGroupId, destinationGroupId));
+		if (totals == null)
+			return null;
+		synchronized (totals) {
+			return new GroupTransfer(date, originGroupId, destinationGroupId, totals[0], totals[1]);
+		}
+	}
+
+	/**
+	 * Returns every stored group transfer total, in no particular order.
+	 * 
+	 * @return list of GroupTransfer
+	 */
+	public List<GroupTransfer> getGroupTransfers() {
+		List<GroupTransfer> transfers = new ArrayList<>(groupTransfers.size());
+		for (GroupTransferKey key : groupTransfers.keySet()) {
+			GroupTransfer transfer = getGroupTransfer(key.getDate(), key.getOriginGroupId(),
+					key.getDestinationGroupId());
+			if (transfer != null)
+				transfers.add(transfer);
+		}
+		return transfers;
+	}
+
+	/**
+	 * Returns the balance stored for a group on a day.
+	 * 
+	 * @param groupId ID of the group
+	 * @param date    date of the balance
+	 * @return balance, or null if the group has no balance for the day
+	 */
+	public Long getGroupBalance(long groupId, LocalDate date) {
+		TreeMap<LocalDate, Long> balances = groupBalances.get(groupId);
+		if (balances == null)
+			return null;
+		synchronized (balances) {
+			return balances.get(date);
+		}
+	}
+
+	private TreeMap<LocalDate, Long> balancesFor(long groupId) {
+		return groupBalances.computeIfAbsent(groupId, id -> new TreeMap<>());
+	}
+
+	/**
+	 * Adds an amount to the balance for the date and every later day, since
+	 * balances are running totals. Must be called holding the map's monitor.
+	 */
+	private static void carryForward(TreeMap<LocalDate, Long> balances, LocalDate date, long amount) {
+		for (Map.Entry<LocalDate, Long> entry : balances.tailMap(date, true).entrySet()) {
+			entry.setValue(entry.getValue() + amount);
+		}
+	}
+
+	/**
+	 * Returns the group's balance for the date if it has one, otherwise its
+	 * closing balance on the most recent earlier day. Must be called holding the
+	 * map's monitor.
+	 */
+	private static long openBalance(TreeMap<LocalDate, Long> balances, LocalDate date) {
+		Long existing = balances.get(date);
+		if (existing != null)
+			return existing;
+		Map.Entry<LocalDate, Long> previous = balances.lowerEntry(date);
+		return previous == null ? 0 : previous.getValue();
+	}
+}
@@ -0,0 +1,137 @@
+package com.alternius.store;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * A single change to the stored metrics, held on to when it could not be
+ * applied straight away. Can be written to and read from a line of text so it
+ * survives being spilled to disk.
+ */
+public class MetricDelta {
+
+	/**
+	 * Which MetricsStore operation the change is for.
+	 */
+	public enum Type {
+		GROUP_TRANSFER, GROUP_BALANCE
+	}
+
+	private final Type type;
+	private final LocalDate date;
+	// Origin group for transfers, the group itself for balances
+	private final long groupId;
+	// Destination group for transfers, unused for balances
+	private final long otherGroupId;
+	private final long amount;
+	private final long count;
+
+	private MetricDelta(Type type, LocalDate date, long groupId, long otherGroupId, long amount, long count) {
+		this.type = type;
+		this.date = date;
+		this.groupId = groupId;
+		this.otherGroupId = otherGroupId;
+		this.amount = amount;
+		this.count = count;
+	}
+
+	/**
+	 * Creates a change for MetricsStore.addGroupTransfer().
+	 * 
+	 * @param date               date of the transfers
+	 * @param originGroupId      ID of the sending group
+	 * @param destinationGroupId ID of the receiving group
+	 * @param amount             total amount transferred
+	 * @param count              number of transfers
+	 * @return MetricDelta
+	 */
+	public static MetricDelta groupTransfer(LocalDate date, long originGroupId, long destinationGroupId,
+			long amount, long count) {
+		return new MetricDelta(Type.GROUP_TRANSFER, date, originGroupId, destinationGroupId, amount, count);
+	}
+
+	/**
+	 * Creates a change for MetricsStore.addGroupBalance().
+	 * 
+	 * @param groupId ID of the group
+	 * @param date    date of the balance
+	 * @param amount  amount to be added to balance
+	 * @return MetricDelta
+	 */
+	public static MetricDelta groupBalance(long groupId, LocalDate date, long amount) {
+		return new MetricDelta(Type.GROUP_BALANCE, date, groupId, 0, amount, 0);
+	}
+
+	/**
+	 * Applies the change to a store.
+	 * 
+	 * @param store store to apply the change to
+	 * @throws SQLException
+	 */
+	public void applyTo(MetricsStore store) throws SQLException {
+		if (type == Type.GROUP_TRANSFER)
+			store.addGroupTransfer(date, groupId, otherGroupId, amount, count);
+		else
+			store.addGroupBalance(groupId, date, amount);
+	}
+
+	/**
+	 * Formats the change as one tab-separated line, without a line break.
+	 * 
+	 * @return line of text
+	 */
+	public String toLine() {
+		return type + "\t" + date + "\t" + groupId + "\t" + otherGroupId + "\t" + amount + "\t" + count;
+	}
+
+	/**
+	 * Reads a change from a line written by toLine().
+	 * 
+	 * @param line line of text
+	 * @return MetricDelta
+	 * @throws IllegalArgumentException if the line is not a valid change
+	 */
+	public static MetricDelta fromLine(String line) {
+		String[] fields = line.split("\t");
+		if (fields.length != 6)
+			throw new IllegalArgumentException("Invalid metric delta: " + line);
+
+		return new MetricDelta(Type.valueOf(fields[0]), LocalDate.parse(fields[1]), Long.parseLong(fields[2]),
+				Long.parseLong(fields[3]), parseAmount(fields[4]), Long.parseLong(fields[5]));
+	}
+
+	/**
+	 * Spill files written before amounts were whole numbers of fen hold them as
+	 * doubles, e.g. "1500.0".
+	 */
+	private static long parseAmount(String field) {
+		try {
+			return Long.parseLong(field);
+		} catch (NumberFormatException e) {
+			return Math.round(Double.parseDouble(field));
+		}
+	}
+
+	/**
+	 * Returns which operation the change is for.
+	 * 
+	 * @return Type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the group the change is for - the origin group for transfers.
+	 * 
+	 * @return group ID
+	 */
+	public long getGroupId() {
+		return groupId;
+	}
+
+	@Override
+	public String toString() {
+		return toLine().replace('\t', ' ');
+	}
+}
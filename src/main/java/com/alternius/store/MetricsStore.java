@@ -0,0 +1,109 @@
+package com.alternius.store;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
+
+/**
+ * Storage for the metrics calculated by EconomyAnalysis. Every operation adds a
+ * change to what is stored rather than overwriting it, so implementations can
+ * apply changes in any order. Implementations must be safe to call from
+ * several threads.
+ */
+public interface MetricsStore {
+
+	/**
+	 * Adds transfers between two groups to the totals for a day, creating the
+	 * day's totals if there are none yet.
+	 * 
+	 * @param date               date of the transfers
+	 * @param originGroupId      ID of the sending group
+	 * @param destinationGroupId ID of the receiving group
+	 * @param amount             total amount transferred
+	 * @param count              number of transfers
+	 * @throws SQLException
+	 */
+	void addGroupTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount, long count)
+			throws SQLException;
+
+	/**
+	 * Adds an amount to a group's balance for a day. If the group has no balance
+	 * for the day yet, it starts from the group's balance on the most recent
+	 * earlier day. Balances are running totals, so if the group already has
+	 * balances for later days the amount is added to those too.
+	 * 
+	 * @param groupId ID of the group
+	 * @param date    date of the balance
+	 * @param amount  amount to be added to balance, pass negative number to
+	 *                subtract
+	 * @throws SQLException
+	 */
+	void addGroupBalance(long groupId, LocalDate date, long amount) throws SQLException;
+
+	/**
+	 * Records a single transfer: adds it to the day's totals for the group pair,
+	 * takes the amount off the origin group's balance and adds it to the
+	 * destination group's. Stores that can write these changes together, e.g. in
+	 * one round trip, override this.
+	 * 
+	 * @param date               date of the transfer
+	 * @param originGroupId      ID of the sending group
+	 * @param destinationGroupId ID of the receiving group
+	 * @param amount             amount transferred
+	 * @throws SQLException
+	 */
+	default void recordTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount)
+			throws SQLException {
+		addGroupTransfer(date, originGroupId, destinationGroupId, amount, 1);
+		addGroupBalance(originGroupId, date, -amount);
+		addGroupBalance(destinationGroupId, date, amount);
+	}
+
+	/**
+	 * Applies a large set of pre-aggregated changes at once, e.g. for a backfill.
+	 * Transfers are added as in addGroupTransfer(). Balance changes are added to
+	 * the group's balance on their date and on every later day, since balances
+	 * are running totals.
+	 * 
+	 * @param transfers transfers to add, at most one per group pair and day
+	 * @param balances  balance changes to add, at most one per group and day
+	 * @throws SQLException
+	 */
+	void bulkLoad(Collection<GroupTransfer> transfers, Collection<GroupBalance> balances) throws SQLException;
+
+	/**
+	 * Marks the start of the changes made for one processed transaction. Stores
+	 * that group writes into database transactions use this to keep each
+	 * processed transaction's changes together, so they are applied or rolled
+	 * back as a whole. Every call must be followed by endUnit() or abortUnit().
+	 * 
+	 * @throws SQLException
+	 */
+	default void beginUnit() throws SQLException {
+	}
+
+	/**
+	 * Marks the end of the changes started by beginUnit().
+	 * 
+	 * @throws SQLException
+	 */
+	default void endUnit() throws SQLException {
+	}
+
+	/**
+	 * Discards the changes made since beginUnit() where the store is able to, e.g.
+	 * because one of them failed. Safe to call even if beginUnit() failed.
+	 */
+	default void abortUnit() {
+	}
+
+	/**
+	 * Makes sure every change added so far has been stored.
+	 * 
+	 * @throws SQLException
+	 */
+	void flush() throws SQLException;
+}
@@ -0,0 +1,839 @@
+package com.alternius.store;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import com.alternius.db.CopyStage;
+import com.alternius.db.DatabaseConnector;
+import com.alternius.db.MicroBatchSession;
+import com.alternius.db.SchemaManager;
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
+
+/**
+ * Stores metrics in the daily_group_transfer and total_by_group tables of the
+ * PostgreSQL database.
+ */
+public class PostgresMetricsStore implements MetricsStore {
+
+	// SQL templates for the metric tables. These are prepared once per connection
+	// by DatabaseConnector and re-executed with new parameters for every
+	// transaction. Both are upserts that add a delta to the existing row, so they
+	// rely on the unique keys (origin_group_id, destination_group_id, date) and
+	// (account_group_id, date).
+	private static final String UPSERT_GROUP_TRANSFER = "INSERT INTO daily_group_transfer"
+			+ " (date, sum_transfers, num_transfers, origin_group_id, destination_group_id) VALUES (?, ?, ?, ?, ?)"
+			+ " ON CONFLICT (origin_group_id, destination_group_id, date) DO UPDATE"
+			+ " SET sum_transfers = daily_group_transfer.sum_transfers + EXCLUDED.sum_transfers,"
+			+ " num_transfers = daily_group_transfer.num_transfers + EXCLUDED.num_transfers";
+	// A new day's row starts from the group's closing balance on the most recent
+	// earlier day it has a row for, which is an index lookup rather than summing
+	// every transfer the group has ever made
+	private static final String UPSERT_GROUP_TOTAL = "INSERT INTO total_by_group (account_group_id, date, amount)"
+			+ " VALUES (?, ?, ? + COALESCE((SELECT previous.amount FROM total_by_group previous"
+			+ " WHERE previous.account_group_id = ? AND previous.date < ? ORDER BY previous.date DESC LIMIT 1), 0))"
+			+ " ON CONFLICT (account_group_id, date) DO UPDATE SET amount = total_by_group.amount + ?";
+
+	// Balances are running totals, so a change to a day the group already has
+	// later rows for has to be added to those too. Params are amount, groupId,
+	// date.
+	private static final String CARRY_FORWARD_GROUP_TOTAL = "UPDATE total_by_group SET amount = amount + ?"
+			+ " WHERE account_group_id = ? AND date > ?";
+	// Both in one statement, so however the change is batched or queued the
+	// carry forward can't be separated from its upsert and run before a later
+	// day's row is opened. The two touch different rows - later days and the
+	// day itself - so they don't see each other's changes. Params are amount,
+	// groupId, date, then those of UPSERT_GROUP_TOTAL.
+	private static final String UPSERT_CARRIED_GROUP_TOTAL = "WITH carried AS (" + CARRY_FORWARD_GROUP_TOTAL + ") "
+			+ UPSERT_GROUP_TOTAL;
+
+	// Same again, but with the opening balance for a new day supplied from the
+	// balance cache rather than looked up. Params are groupId, date, opening
+	// balance + amount, amount.
+	private static final String UPSERT_OPENED_GROUP_TOTAL = "INSERT INTO total_by_group (account_group_id, date, amount)"
+			+ " VALUES (?, ?, ?) ON CONFLICT (account_group_id, date) DO UPDATE SET amount = total_by_group.amount + ?";
+	// Opens a group's row for a new day from its closing balance on the most
+	// recent earlier day, as it stands in the database when the row is opened,
+	// so corrections to earlier days written since the seal are included. A row
+	// a transaction has already opened is left alone. Params are groupId, date,
+	// groupId, date.
+	private static final String OPEN_SEALED_GROUP_TOTAL = "INSERT INTO total_by_group (account_group_id, date, amount)"
+			+ " SELECT ?, ?, COALESCE((SELECT previous.amount FROM total_by_group previous"
+			+ " WHERE previous.account_group_id = ? AND previous.date < ? ORDER BY previous.date DESC LIMIT 1), 0)"
+			+ " ON CONFLICT (account_group_id, date) DO NOTHING";
+	// Each group's latest balance and the closing balance of the day before it,
+	// to load the balance cache
+	private static final String SELECT_LATEST_GROUP_TOTALS = "SELECT latest.account_group_id, latest.date,"
+			+ " COALESCE((SELECT previous.amount FROM total_by_group previous"
+			+ " WHERE previous.account_group_id = latest.account_group_id AND previous.date < latest.date"
+			+ " ORDER BY previous.date DESC LIMIT 1), 0), latest.amount"
+			+ " FROM (SELECT DISTINCT ON (account_group_id) account_group_id, date, amount FROM total_by_group"
+			+ " ORDER BY account_group_id, date DESC) latest";
+
+	// The full write set for one transfer - the group pair's totals plus both
+	// groups' balances - sent as one pipelined round trip rather than three
+	private static final String RECORD_TRANSFER = DatabaseConnector.pipeline(UPSERT_GROUP_TRANSFER,
+			UPSERT_CARRIED_GROUP_TOTAL, UPSERT_CARRIED_GROUP_TOTAL);
+	private static final String RECORD_OPENED_TRANSFER = DatabaseConnector.pipeline(UPSERT_GROUP_TRANSFER,
+			UPSERT_OPENED_GROUP_TOTAL, UPSERT_OPENED_GROUP_TOTAL);
+
+	// Bulk loading for backfills. Pre-aggregated rows are copied into temporary
+	// staging tables, then merged into the metric tables in one go.
+	private static final String CREATE_GROUP_TRANSFER_STAGING = "CREATE TEMPORARY TABLE staging_group_transfer"
+			+ " (date DATE, origin_group_id BIGINT, destination_group_id BIGINT, sum_transfers BIGINT,"
+			+ " num_transfers BIGINT) ON COMMIT DROP";
+	private static final String COPY_GROUP_TRANSFER_STAGING = "COPY staging_group_transfer"
+			+ " (date, origin_group_id, destination_group_id, sum_transfers, num_transfers) FROM STDIN";
+	private static final String MERGE_GROUP_TRANSFER_STAGING = "INSERT INTO daily_group_transfer"
+			+ " (date, sum_transfers, num_transfers, origin_group_id, destination_group_id)"
+			+ " SELECT date, sum_transfers, num_transfers, origin_group_id, destination_group_id FROM staging_group_transfer"
+			+ " ON CONFLICT (origin_group_id, destination_group_id, date) DO UPDATE"
+			+ " SET sum_transfers = daily_group_transfer.sum_transfers + EXCLUDED.sum_transfers,"
+			+ " num_transfers = daily_group_transfer.num_transfers + EXCLUDED.num_transfers";
+	private static final String CREATE_GROUP_TOTAL_STAGING = "CREATE TEMPORARY TABLE staging_group_total"
+			+ " (account_group_id BIGINT, date DATE, amount BIGINT) ON COMMIT DROP";
+	private static final String COPY_GROUP_TOTAL_STAGING = "COPY staging_group_total (account_group_id, date, amount) FROM STDIN";
+	// Balances are running totals, so merging takes two steps: open any missing
+	// day rows from the previous closing balance, then add every staged delta on
+	// or before each row's date to that row
+	private static final String OPEN_GROUP_TOTAL_STAGING = "INSERT INTO total_by_group (account_group_id, date, amount)"
+			+ " SELECT staged.account_group_id, staged.date, COALESCE((SELECT previous.amount FROM total_by_group previous"
+			+ " WHERE previous.account_group_id = staged.account_group_id AND previous.date < staged.date"
+			+ " ORDER BY previous.date DESC LIMIT 1), 0) FROM staging_group_total staged"
+			+ " ON CONFLICT (account_group_id, date) DO NOTHING";
+	private static final String MERGE_GROUP_TOTAL_STAGING = "UPDATE total_by_group SET amount = total_by_group.amount"
+			+ " + (SELECT SUM(staged.amount) FROM staging_group_total staged"
+			+ " WHERE staged.account_group_id = total_by_group.account_group_id AND staged.date <= total_by_group.date)"
+			+ " WHERE EXISTS (SELECT 1 FROM staging_group_total staged"
+			+ " WHERE staged.account_group_id = total_by_group.account_group_id AND staged.date <= total_by_group.date)";
+
+	private static final int DEFAULT_COMMIT_INTERVAL = 100;
+	private static final long DEFAULT_COMMIT_MAX_AGE_MILLIS = 1000;
+	private static final int GROUP_STRIPES = 64;
+
+	/**
+	 * How changes are sent to the database.
+	 */
+	public enum WriteMode {
+		/** Each change is executed straight away in its own transaction. */
+		IMMEDIATE,
+		/**
+		 * Changes are queued with DatabaseConnector.addBatch() and sent in JDBC
+		 * batches.
+		 */
+		BATCHED,
+		/**
+		 * Changes are executed straight away, but the changes for several processed
+		 * transactions share one database transaction. See MicroBatchSession.
+		 */
+		TRANSACTIONAL,
+		/**
+		 * Changes are submitted to DatabaseConnector's I/O threads and the caller
+		 * carries on without waiting for them. Changes for the same group are sent
+		 * in the order they were made.
+		 */
+		ASYNC
+	}
+
+	private final DatabaseConnector dbConnector;
+	private final WriteMode writeMode;
+	// Creates partitions for the dates a bulk load touches, if set
+	private volatile SchemaManager schemaManager;
+
+	// Used in TRANSACTIONAL mode. There is one session for the whole store, and a
+	// thread holds the lock for as long as it has a unit open on it.
+	private final ReentrantLock sessionLock = new ReentrantLock();
+	private MicroBatchSession session;
+	private int commitInterval = DEFAULT_COMMIT_INTERVAL;
+	private long commitMaxAgeMillis = DEFAULT_COMMIT_MAX_AGE_MILLIS;
+	// Commits the session once its transaction is too old, even if no more units
+	// arrive. Started with the session.
+	private ScheduledExecutorService sessionCommitter;
+
+	// Opens new day balances without asking the database for the previous day.
+	// Loaded on first use. After a write that may not have reached the database
+	// it is thrown away, and not used again until a flush has succeeded, since
+	// loading it while writes are still queued would miss them.
+	private final GroupBalanceCache balanceCache = new GroupBalanceCache();
+	private volatile boolean balanceCacheEnabled = true;
+	private volatile boolean balanceCacheSuspended;
+
+	// Seals a day once the first balance for a later day arrives - see
+	// sealDay(). Seals run one at a time, in order, on their own thread.
+	private volatile boolean daySealingEnabled = true;
+	private final ExecutorService sealExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "day-seal");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private volatile CompletableFuture<Void> lastSeal = CompletableFuture.completedFuture(null);
+	// Balance writers hold the read lock from taking their opening balance until
+	// their write has been sent, so a seal can wait for every write whose opening
+	// was taken before the day rolled over
+	private final ReentrantReadWriteLock balanceWriteLock = new ReentrantReadWriteLock();
+	// Used in IMMEDIATE mode, the only mode where writes to the same group can be
+	// in the database at once - see lockGroups()
+	private final ReentrantReadWriteLock[] groupStripes = new ReentrantReadWriteLock[GROUP_STRIPES];
+
+	// ASYNC mode writes that haven't finished, and where to send the changes of
+	// any that fail
+	private final Set<CompletableFuture<?>> asyncWrites = Collections
+			.newSetFromMap(new ConcurrentHashMap<CompletableFuture<?>, Boolean>());
+	private volatile Consumer<MetricDelta> failedWriteHandler;
+
+	/**
+	 * Creates a store that writes every change straight away.
+	 * 
+	 * @param dbConnector instance of DatabaseConnector
+	 */
+	public PostgresMetricsStore(DatabaseConnector dbConnector) {
+		this(dbConnector, WriteMode.IMMEDIATE);
+	}
+
+	/**
+	 * Creates a store writing to the given database.
+	 * 
+	 * @param dbConnector instance of DatabaseConnector
+	 * @param batchWrites whether changes should be queued and sent in batches
+	 *                    rather than one round trip at a time. Call flush() when
+	 *                    done to send anything still queued.
+	 */
+	public PostgresMetricsStore(DatabaseConnector dbConnector, boolean batchWrites) {
+		this(dbConnector, batchWrites ? WriteMode.BATCHED : WriteMode.IMMEDIATE);
+	}
+
+	/**
+	 * Creates a store writing to the given database.
+	 * 
+	 * @param dbConnector instance of DatabaseConnector
+	 * @param writeMode   how changes should be sent to the database. Call flush()
+	 *                    when done unless this is IMMEDIATE.
+	 */
+	public PostgresMetricsStore(DatabaseConnector dbConnector, WriteMode writeMode) {
+		this.dbConnector = dbConnector;
+		this.writeMode = writeMode;
+		for (int i = 0; i < groupStripes.length; i++) {
+			groupStripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Sets whether new day balances are opened from an in-memory cache of every
+	 * group's latest balance. On by default. Turn it off if anything else writes
+	 * to total_by_group while this store is in use.
+	 * 
+	 * @param balanceCacheEnabled whether to use the balance cache
+	 */
+	public void setBalanceCacheEnabled(boolean balanceCacheEnabled) {
+		this.balanceCacheEnabled = balanceCacheEnabled;
+		if (!balanceCacheEnabled)
+			balanceCache.invalidate();
+	}
+
+	/**
+	 * Sets where the changes of failed writes go in ASYNC mode, e.g. a
+	 * ResilientMetricsStore's retryLater() so they are replayed once the database
+	 * is back. Without one, failures are only reported, and the next flush()
+	 * fails.
+	 * 
+	 * @param failedWriteHandler receives each change whose write failed, on an
+	 *                           I/O thread
+	 */
+	public void setFailedWriteHandler(Consumer<MetricDelta> failedWriteHandler) {
+		this.failedWriteHandler = failedWriteHandler;
+	}
+
+	/**
+	 * Sets the SchemaManager used to create monthly partitions for the dates in
+	 * each bulk load before it is merged, so backfilled rows land in their own
+	 * month's partition rather than the DEFAULT one.
+	 * 
+	 * @param schemaManager SchemaManager for this store's database, or null
+	 */
+	public void setSchemaManager(SchemaManager schemaManager) {
+		this.schemaManager = schemaManager;
+	}
+
+	/**
+	 * Turns day sealing on or off. With it on, which it is by default, the first
+	 * balance change for a new day opens that day's row for every group the
+	 * balance cache knows, from the closing balances in the database, and the
+	 * previous day's queued writes are flushed in the background. Only takes
+	 * effect while the balance cache is in use.
+	 * 
+	 * @param daySealingEnabled whether to seal days
+	 */
+	public void setDaySealingEnabled(boolean daySealingEnabled) {
+		this.daySealingEnabled = daySealingEnabled;
+	}
+
+	/**
+	 * Sets how many processed transactions are grouped into each database
+	 * transaction in TRANSACTIONAL mode. Must be set before the first change is
+	 * made.
+	 * 
+	 * @param commitInterval number of units per commit
+	 */
+	public void setCommitInterval(int commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+
+	/**
+	 * Sets how long a database transaction may stay open in TRANSACTIONAL mode
+	 * before it is committed, however few processed transactions it holds. Must
+	 * be set before the first change is made.
+	 * 
+	 * @param commitMaxAgeMillis maximum age in milliseconds
+	 */
+	public void setCommitMaxAgeMillis(long commitMaxAgeMillis) {
+		this.commitMaxAgeMillis = commitMaxAgeMillis;
+	}
+
+	@Override
+	public void addGroupTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount,
+			long count) throws SQLException {
+		write(MetricDelta.groupTransfer(date, originGroupId, destinationGroupId, amount, count), UPSERT_GROUP_TRANSFER,
+				date, amount, count, originGroupId, destinationGroupId);
+	}
+
+	@Override
+	public void addGroupBalance(long groupId, LocalDate date, long amount) throws SQLException {
+		balanceWriteLock.readLock().lock();
+		try {
+			Lock[] locks = lockGroups(false, groupId);
+			try {
+				Long opening = openingBalance(groupId, date, amount);
+				if (opening != null) {
+					writeBalance(groupId, date, amount, opening);
+					return;
+				}
+			} finally {
+				unlock(locks);
+			}
+
+			locks = lockGroups(true, groupId);
+			try {
+				writeBalance(groupId, date, amount, null);
+			} finally {
+				unlock(locks);
+			}
+		} finally {
+			balanceWriteLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes a balance change, opening the day's row from the given opening
+	 * balance, or from the database if there is none.
+	 */
+	private void writeBalance(long groupId, LocalDate date, long amount, Long opening) throws SQLException {
+		MetricDelta delta = MetricDelta.groupBalance(groupId, date, amount);
+		if (opening != null) {
+			write(delta, UPSERT_OPENED_GROUP_TOTAL, groupId, date, opening + amount, amount);
+		} else {
+			write(delta, UPSERT_CARRIED_GROUP_TOTAL, amount, groupId, date, groupId, date, amount, groupId, date,
+					amount);
+		}
+	}
+
+	/**
+	 * Sends all three changes in one round trip. In BATCHED mode the changes are
+	 * queued separately instead, since JDBC batches already send many transfers
+	 * at once and each template's batch is prepared only once. In ASYNC mode they
+	 * are also sent separately, so each can be kept in order with the rest of its
+	 * group's changes.
+	 * 
+	 * Both opening balances are taken before anything is written, so if the
+	 * balance cache can't be loaded none of the transfer is queued.
+	 */
+	@Override
+	public void recordTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount)
+			throws SQLException {
+		balanceWriteLock.readLock().lock();
+		try {
+			Long originOpening;
+			Long destinationOpening;
+			Lock[] locks = lockGroups(false, originGroupId, destinationGroupId);
+			try {
+				originOpening = openingBalance(originGroupId, date, -amount);
+				destinationOpening = openingBalance(destinationGroupId, date, amount);
+				if (originOpening != null && destinationOpening != null) {
+					writeTransfer(date, originGroupId, destinationGroupId, amount, originOpening, destinationOpening);
+					return;
+				}
+			} finally {
+				unlock(locks);
+			}
+
+			locks = lockGroups(true, originGroupId, destinationGroupId);
+			try {
+				writeTransfer(date, originGroupId, destinationGroupId, amount, originOpening, destinationOpening);
+			} finally {
+				unlock(locks);
+			}
+		} finally {
+			balanceWriteLock.readLock().unlock();
+		}
+	}
+
+	private void writeTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount,
+			Long originOpening, Long destinationOpening) throws SQLException {
+		if (writeMode == WriteMode.BATCHED || writeMode == WriteMode.ASYNC) {
+			addGroupTransfer(date, originGroupId, destinationGroupId, amount, 1);
+			writeBalance(originGroupId, date, -amount, originOpening);
+			writeBalance(destinationGroupId, date, amount, destinationOpening);
+			return;
+		}
+
+		if (originOpening != null && destinationOpening != null) {
+			write(null, RECORD_OPENED_TRANSFER, date, amount, 1L, originGroupId, destinationGroupId, originGroupId,
+					date, originOpening - amount, -amount, destinationGroupId, date, destinationOpening + amount,
+					amount);
+		} else {
+			write(null, RECORD_TRANSFER, date, amount, 1L, originGroupId, destinationGroupId, -amount,
+					originGroupId, date, originGroupId, date, -amount, originGroupId, date, -amount, amount,
+					destinationGroupId, date, destinationGroupId, date, amount, destinationGroupId, date, amount);
+		}
+	}
+
+	/**
+	 * Streams the changes into staging tables with COPY and merges them into
+	 * daily_group_transfer and total_by_group. Both tables are loaded in one
+	 * transaction, so a failed load leaves neither changed and can be re-run as
+	 * a whole.
+	 * 
+	 * Anything still queued or uncommitted is flushed first. The merge updates
+	 * rows those writes may hold locks on, so it would otherwise wait on them -
+	 * in TRANSACTIONAL mode, on a session transaction that is only committed by
+	 * the thread now waiting for the merge.
+	 */
+	@Override
+	public void bulkLoad(Collection<GroupTransfer> transfers, Collection<GroupBalance> balances)
+			throws SQLException {
+		flush();
+
+		LocalDate from = null;
+		LocalDate to = null;
+		List<Object[]> transferRows = new ArrayList<>(transfers.size());
+		for (GroupTransfer transfer : transfers) {
+			from = from == null || transfer.getDate().isBefore(from) ? transfer.getDate() : from;
+			to = to == null || transfer.getDate().isAfter(to) ? transfer.getDate() : to;
+			transferRows.add(new Object[] { transfer.getDate(), transfer.getOriginGroupId(),
+					transfer.getDestinationGroupId(), transfer.getSumTransfers(), transfer.getNumTransfers() });
+		}
+
+		List<Object[]> totalRows = new ArrayList<>(balances.size());
+		long[] groupIds = new long[balances.size()];
+		for (GroupBalance balance : balances) {
+			groupIds[totalRows.size()] = balance.getGroupId();
+			from = from == null || balance.getDate().isBefore(from) ? balance.getDate() : from;
+			to = to == null || balance.getDate().isAfter(to) ? balance.getDate() : to;
+			totalRows.add(new Object[] { balance.getGroupId(), balance.getDate(), balance.getAmount() });
+		}
+
+		SchemaManager schemaManager = this.schemaManager;
+		if (schemaManager != null && from != null)
+			schemaManager.createPartitions(from, to);
+
+		// The merge carries balances forward like a late change does. Not held over
+		// the flushes, which can wait on a day seal that is waiting on writers.
+		Lock[] locks = lockGroups(true, groupIds);
+		try {
+			dbConnector.bulkMerge(
+					Arrays.asList(
+							new CopyStage(CREATE_GROUP_TRANSFER_STAGING, COPY_GROUP_TRANSFER_STAGING, transferRows),
+							new CopyStage(CREATE_GROUP_TOTAL_STAGING, COPY_GROUP_TOTAL_STAGING, totalRows)),
+					MERGE_GROUP_TRANSFER_STAGING, OPEN_GROUP_TOTAL_STAGING, MERGE_GROUP_TOTAL_STAGING);
+		} finally {
+			unlock(locks);
+			// Balances on and after every loaded date have changed. Writes made while
+			// the load ran may still be queued, so the cache stays off until they have
+			// been flushed too, rather than being reloaded without them.
+			suspendBalanceCache();
+		}
+		flush();
+	}
+
+	/**
+	 * In TRANSACTIONAL mode, starts a unit inside the shared micro-batch
+	 * transaction, holding the session until endUnit() or abortUnit().
+	 */
+	@Override
+	public void beginUnit() throws SQLException {
+		if (writeMode != WriteMode.TRANSACTIONAL)
+			return;
+
+		sessionLock.lock();
+		try {
+			session().beginUnit();
+		} catch (SQLException | RuntimeException e) {
+			sessionLock.unlock();
+			throw e;
+		}
+	}
+
+	@Override
+	public void endUnit() throws SQLException {
+		if (writeMode != WriteMode.TRANSACTIONAL || !sessionLock.isHeldByCurrentThread())
+			return;
+
+		try {
+			session.endUnit();
+		} catch (SQLException | RuntimeException e) {
+			// The commit failed, so units in it may have been dropped
+			suspendBalanceCache();
+			throw e;
+		} finally {
+			sessionLock.unlock();
+		}
+	}
+
+	@Override
+	public void abortUnit() {
+		if (writeMode != WriteMode.TRANSACTIONAL || !sessionLock.isHeldByCurrentThread())
+			return;
+
+		try {
+			session.abortUnit();
+		} finally {
+			sessionLock.unlock();
+			suspendBalanceCache();
+		}
+	}
+
+	/**
+	 * Sends any changes that are still queued or uncommitted, or waits for those
+	 * still in flight. Does nothing in IMMEDIATE mode.
+	 */
+	@Override
+	public void flush() throws SQLException {
+		// Rows opened by a seal are written like any other change, so wait for it
+		// before flushing them
+		awaitSeal();
+		try {
+			flushWrites();
+		} catch (SQLException | RuntimeException e) {
+			suspendBalanceCache();
+			throw e;
+		}
+		// Everything written so far is in the database, so the balance cache can be
+		// loaded again if it had to be thrown away
+		balanceCacheSuspended = false;
+	}
+
+	private void flushWrites() throws SQLException {
+		if (writeMode == WriteMode.ASYNC) {
+			// Failed writes are handed on as they complete, so wait for that first
+			for (CompletableFuture<?> write : new ArrayList<>(asyncWrites)) {
+				write.join();
+			}
+			try {
+				dbConnector.awaitPending();
+			} catch (SQLException e) {
+				// Each failed write's change has gone to the handler
+				if (failedWriteHandler == null)
+					throw e;
+			}
+		} else if (writeMode == WriteMode.TRANSACTIONAL) {
+			sessionLock.lock();
+			try {
+				if (session != null)
+					session.commit();
+			} finally {
+				sessionLock.unlock();
+			}
+		} else {
+			dbConnector.flush();
+		}
+	}
+
+	/**
+	 * Runs a metric update, either straight away or by queuing it in the current
+	 * batch depending on how this store was constructed.
+	 * 
+	 * @param delta  change the update makes, used in ASYNC mode to order it and
+	 *               to hand it on if it fails. May be null in other modes.
+	 * @param sql    SQL statement template
+	 * @param params values to bind to the template's placeholders
+	 * @throws SQLException
+	 */
+	private void write(MetricDelta delta, String sql, Object... params) throws SQLException {
+		try {
+			send(delta, sql, params);
+		} catch (SQLException | RuntimeException e) {
+			suspendBalanceCache();
+			throw e;
+		}
+	}
+
+	private void send(MetricDelta delta, String sql, Object... params) throws SQLException {
+		switch (writeMode) {
+		case BATCHED:
+			dbConnector.addBatch(sql, params);
+			break;
+		case TRANSACTIONAL:
+			// Outside of a unit, the statement becomes a unit of its own
+			sessionLock.lock();
+			try {
+				session().execute(sql, params);
+			} finally {
+				sessionLock.unlock();
+			}
+			break;
+		case ASYNC:
+			// Ordered by group, so a day's row is never opened from a balance whose
+			// earlier changes are still queued behind it
+			CompletableFuture<Void> written = dbConnector.submitOrderedUpdate(delta.getGroupId(), sql, params)
+					.handle((rows, error) -> {
+						if (error != null)
+							writeFailed(delta, error);
+						return null;
+					});
+			asyncWrites.add(written);
+			written.whenComplete((result, error) -> asyncWrites.remove(written));
+			break;
+		default:
+			dbConnector.executePreparedUpdate(sql, params);
+		}
+	}
+
+	/**
+	 * Records a balance change in the balance cache and returns the opening
+	 * balance for the day, loading the cache first if needed.
+	 * 
+	 * @param groupId ID of the group
+	 * @param date    date of the balance
+	 * @param amount  amount being added to the balance
+	 * @return opening balance, or null if it has to be looked up by the upsert, e.g.
+	 *         because the change is to a day before the group's latest
+	 * @throws SQLException if the cache cannot be loaded
+	 */
+	private Long openingBalance(long groupId, LocalDate date, long amount) throws SQLException {
+		if (!balanceCacheEnabled || balanceCacheSuspended)
+			return null;
+
+		// Holding the cache's lock while loading keeps other writers from using it
+		// half loaded
+		balanceCache.lock();
+		try {
+			if (!balanceCache.isLoaded()) {
+				dbConnector.stream(SELECT_LATEST_GROUP_TOTALS,
+						rs -> balanceCache.put(rs.getLong(1), rs.getObject(2, LocalDate.class), rs.getLong(3),
+								rs.getLong(4)));
+				balanceCache.markLoaded();
+			}
+			if (daySealingEnabled) {
+				Set<Long> openedGroupIds = balanceCache.rollOver(date);
+				if (openedGroupIds != null && !openedGroupIds.isEmpty())
+					sealDay(date, openedGroupIds);
+			}
+			Long opening = balanceCache.add(groupId, date, amount);
+			if (opening == null) {
+				// A change to a day before the group's latest. Its write carries it
+				// forward to the later rows, but rows opened from the cache in the
+				// meantime wouldn't include it, so the cache stays off until the write
+				// has been flushed and the cache can be reloaded with it.
+				suspendBalanceCache();
+			}
+			return opening;
+		} finally {
+			balanceCache.unlock();
+		}
+	}
+
+	/**
+	 * Locks the stripes of the given groups in IMMEDIATE mode, in stripe order so
+	 * writers can't deadlock. Release with unlock(). Other modes already send
+	 * each group's writes one at a time, so nothing is locked.
+	 * 
+	 * Writes opened from the balance cache share their stripes: they only ever
+	 * add to a row, so their order doesn't matter and they never wait for each
+	 * other. A write that looks up its opening balance in the database, or
+	 * carries a change forward to later days, holds its stripes exclusively.
+	 * It waits for the group's writes already under way, so it sees every row
+	 * they open, and nothing opens a row from the cache meanwhile - the cache is
+	 * suspended by then.
+	 * 
+	 * @param exclusive whether to lock the stripes exclusively
+	 * @param groupIds  IDs of the groups
+	 * @return locks to pass to unlock()
+	 */
+	private Lock[] lockGroups(boolean exclusive, long... groupIds) {
+		if (writeMode != WriteMode.IMMEDIATE)
+			return new Lock[0];
+
+		int[] indexes = Arrays.stream(groupIds).mapToInt(PostgresMetricsStore::stripeFor).distinct().sorted()
+				.toArray();
+		Lock[] locks = new Lock[indexes.length];
+		for (int i = 0; i < indexes.length; i++) {
+			ReentrantReadWriteLock stripe = groupStripes[indexes[i]];
+			locks[i] = exclusive ? stripe.writeLock() : stripe.readLock();
+			locks[i].lock();
+		}
+		return locks;
+	}
+
+	private static void unlock(Lock[] locks) {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+
+	private static int stripeFor(long groupId) {
+		// Spread the bits, since IDs are often sequential
+		long hash = groupId * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 32) & (GROUP_STRIPES - 1);
+	}
+
+	/**
+	 * Seals the day before openedDate in the background: sends the sealed day's
+	 * queued writes to the database, then opens openedDate's row for every group
+	 * from its closing balance. Once a group's row is open, its writes for the
+	 * day only ever add to that one row.
+	 * 
+	 * The closing balance is read by the insert itself rather than taken from the
+	 * balance cache, so a late correction to an earlier day is in the opened row
+	 * whichever reaches the database first - the correction's carry forward
+	 * updates a row that is already open, and a row opened afterwards reads the
+	 * corrected balance.
+	 * 
+	 * Before flushing, the seal waits for every balance write already under way.
+	 * Those took their opening balance before the day rolled over, so they write
+	 * to the sealed day without carrying forward, and the rows opened from it
+	 * would otherwise miss them.
+	 * 
+	 * The rows are opened through the same write path as everything else rather
+	 * than in a bulk load of their own, so in BATCHED and TRANSACTIONAL mode they
+	 * share the store's batches and database transactions instead of waiting on
+	 * their row locks. If the writes can't be sent the rows aren't opened, since
+	 * the balances they would be opened from may not have reached the database,
+	 * and the balance cache is suspended as for any other failed write.
+	 * 
+	 * @param openedDate date of the day being opened
+	 * @param groupIds   ID of every group to open a row for
+	 */
+	private void sealDay(LocalDate openedDate, Set<Long> groupIds) {
+		lastSeal = CompletableFuture.runAsync(() -> {
+			// Only waits for writers to leave, so it can't block on anything they
+			// hold, e.g. a TRANSACTIONAL unit
+			balanceWriteLock.writeLock().lock();
+			balanceWriteLock.writeLock().unlock();
+
+			try {
+				flushWrites();
+			} catch (SQLException | RuntimeException e) {
+				suspendBalanceCache();
+				System.err.println("Could not flush writes before sealing the day before " + openedDate);
+				e.printStackTrace();
+				return;
+			}
+
+			try {
+				for (long groupId : groupIds) {
+					// A failed open goes on as a zero change, which opens the row just the same
+					send(MetricDelta.groupBalance(groupId, openedDate, 0), OPEN_SEALED_GROUP_TOTAL, groupId,
+							openedDate, groupId, openedDate);
+				}
+			} catch (SQLException | RuntimeException e) {
+				// Not fatal - each group's first write of the day opens its row as before
+				System.err.println("Could not open balances for " + openedDate);
+				e.printStackTrace();
+			}
+		}, sealExecutor);
+	}
+
+	/**
+	 * Waits for the latest day seal to finish. Seals report their own failures,
+	 * so this only waits.
+	 */
+	private void awaitSeal() {
+		try {
+			lastSeal.join();
+		} catch (CompletionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handles an ASYNC mode write that failed. Nobody waits on its future, so the
+	 * change is handed to the failed write handler if there is one, and reported
+	 * here otherwise.
+	 */
+	private void writeFailed(MetricDelta delta, Throwable error) {
+		suspendBalanceCache();
+		Consumer<MetricDelta> handler = failedWriteHandler;
+		if (handler != null) {
+			handler.accept(delta);
+		} else {
+			System.err.println("Could not write metric change " + delta);
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Throws the balance cache away after a write that may not have reached the
+	 * database, and stops it being reloaded until the next successful flush.
+	 */
+	private void suspendBalanceCache() {
+		balanceCacheSuspended = true;
+		balanceCache.invalidate();
+	}
+
+	/**
+	 * Starts the background thread that commits the session once its transaction
+	 * reaches the maximum age. A thread in the middle of a unit commits it itself
+	 * when the unit ends, so the check is skipped while the session is in use.
+	 */
+	private void startSessionCommitter() {
+		sessionCommitter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "micro-batch-committer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Check a few times per interval so transactions don't stay open much longer
+		// than it
+		long period = Math.max(1, commitMaxAgeMillis / 4);
+		sessionCommitter.scheduleWithFixedDelay(() -> {
+			if (!sessionLock.tryLock())
+				return;
+			try {
+				session.commitIfOverdue();
+			} catch (SQLException | RuntimeException e) {
+				suspendBalanceCache();
+				e.printStackTrace();
+			} finally {
+				sessionLock.unlock();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the micro-batch session, opening it on first use. Must be called
+	 * holding sessionLock.
+	 */
+	private MicroBatchSession session() {
+		if (session == null) {
+			session = dbConnector.openMicroBatchSession(commitInterval);
+			session.setMaxAgeMillis(commitMaxAgeMillis);
+			startSessionCommitter();
+		}
+		return session;
+	}
+}
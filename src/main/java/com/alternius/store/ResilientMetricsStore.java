@@ -0,0 +1,327 @@
+package com.alternius.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
+
+/**
+ * Wraps another MetricsStore so changes survive the store being unavailable.
+ *
+ * Failed changes are retried with exponential backoff. Changes that still fail
+ * count towards a circuit breaker, and while the breaker is open changes are
+ * not attempted at all. Changes that could not be applied go into a bounded
+ * in-memory buffer, then to an append-only spill file once the buffer is full.
+ * The two make up one queue: once anything has been spilled, every later change
+ * is spilled after it until the file has been replayed, so the buffer only ever
+ * holds changes older than the file's. They are replayed strictly oldest first
+ * once the store accepts changes again - either on the next change, on
+ * flush(), or from a background check.
+ *
+ * Changes must fail synchronously for this to help, so wrap a store that
+ * applies changes straight away (e.g. a PostgresMetricsStore in IMMEDIATE mode)
+ * rather than one that batches or defers them. The exception is a
+ * PostgresMetricsStore in ASYNC mode whose failed write handler is this store's
+ * retryLater(), so changes that fail in the background come back here. Units
+ * are not passed through - each change is applied on its own.
+ */
+public class ResilientMetricsStore implements MetricsStore {
+
+	private static final int DEFAULT_MAX_RETRIES = 3;
+	private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 50;
+	private static final long MAX_BACKOFF_MILLIS = 2000;
+	private static final int DEFAULT_BUFFER_CAPACITY = 100000;
+	private static final long RECOVERY_CHECK_INTERVAL_MILLIS = 1000;
+
+	private final MetricsStore delegate;
+	private final CircuitBreaker circuitBreaker;
+	private final SpillFile spillFile;
+	private final int bufferCapacity;
+
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private volatile long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+	// Changes waiting to be replayed, oldest first, all older than anything in
+	// the spill file. Once full, new changes go to the spill file instead.
+	private final Deque<MetricDelta> buffer = new ArrayDeque<>();
+	// Held while replaying so only one thread replays at a time
+	private final Object replayLock = new Object();
+
+	private final ScheduledExecutorService recoveryChecker;
+
+	/**
+	 * Wraps a store with the default buffer capacity.
+	 *
+	 * @param delegate       store to apply changes to
+	 * @param circuitBreaker breaker deciding when the store is tried
+	 * @param spillPath      file to spill changes to once the buffer is full
+	 * @throws IOException if an existing spill file cannot be read
+	 */
+	public ResilientMetricsStore(MetricsStore delegate, CircuitBreaker circuitBreaker, Path spillPath)
+			throws IOException {
+		this(delegate, circuitBreaker, spillPath, DEFAULT_BUFFER_CAPACITY);
+	}
+
+	/**
+	 * Wraps a store. Changes left in the spill file by an earlier run are replayed
+	 * once the store is available.
+	 *
+	 * @param delegate       store to apply changes to
+	 * @param circuitBreaker breaker deciding when the store is tried
+	 * @param spillPath      file to spill changes to once the buffer is full
+	 * @param bufferCapacity number of changes kept in memory before spilling
+	 * @throws IOException if an existing spill file cannot be read
+	 */
+	public ResilientMetricsStore(MetricsStore delegate, CircuitBreaker circuitBreaker, Path spillPath,
+			int bufferCapacity) throws IOException {
+		this.delegate = delegate;
+		this.circuitBreaker = circuitBreaker;
+		this.spillFile = new SpillFile(spillPath);
+		this.bufferCapacity = bufferCapacity;
+
+		recoveryChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-store-recovery");
+			thread.setDaemon(true);
+			return thread;
+		});
+		recoveryChecker.scheduleWithFixedDelay(this::replayBacklog, RECOVERY_CHECK_INTERVAL_MILLIS,
+				RECOVERY_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void addGroupTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount,
+			long count) {
+		apply(MetricDelta.groupTransfer(date, originGroupId, destinationGroupId, amount, count));
+	}
+
+	@Override
+	public void addGroupBalance(long groupId, LocalDate date, long amount) {
+		apply(MetricDelta.groupBalance(groupId, date, amount));
+	}
+
+	/**
+	 * Retried like any other change, but not buffered if it still fails - a bulk
+	 * load is better re-run as a whole.
+	 */
+	@Override
+	public void bulkLoad(Collection<GroupTransfer> transfers, Collection<GroupBalance> balances)
+			throws SQLException {
+		if (!circuitBreaker.allowRequest())
+			throw new SQLException("Metrics store unavailable, circuit breaker is open");
+
+		withRetries(() -> delegate.bulkLoad(transfers, balances));
+	}
+
+	/**
+	 * Replays any buffered changes if the store is available, then flushes it.
+	 *
+	 * @throws SQLException if changes are still waiting to be applied
+	 */
+	@Override
+	public void flush() throws SQLException {
+		replayBacklog();
+		if (getBacklogSize() > 0)
+			throw new SQLException(getBacklogSize() + " metric changes are still waiting for the store");
+		delegate.flush();
+		// Changes that failed in the background while the delegate flushed have
+		// been handed back by now
+		if (getBacklogSize() > 0)
+			throw new SQLException(getBacklogSize() + " metric changes are still waiting for the store");
+	}
+
+	/**
+	 * Takes back a change the delegate accepted but then failed to apply in the
+	 * background, to be replayed with the rest of the backlog. Counts as a failure
+	 * for the circuit breaker.
+	 *
+	 * @param delta change that failed
+	 */
+	public void retryLater(MetricDelta delta) {
+		circuitBreaker.recordFailure();
+		buffer(delta);
+	}
+
+	/**
+	 * Stops the background recovery check. Buffered changes that have not been
+	 * replayed are written to the front of the spill file so they are replayed
+	 * first on the next run.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		recoveryChecker.shutdownNow();
+		synchronized (replayLock) {
+			synchronized (buffer) {
+				spillFile.prepend(buffer);
+				buffer.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of changes waiting to be replayed, in memory and on disk.
+	 *
+	 * @return backlog size
+	 */
+	public long getBacklogSize() {
+		synchronized (buffer) {
+			return buffer.size() + spillFile.size();
+		}
+	}
+
+	/**
+	 * Returns the circuit breaker guarding the store.
+	 *
+	 * @return CircuitBreaker
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Sets how many times a failed change is retried before it is buffered.
+	 *
+	 * @param maxRetries number of retries
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Sets the wait before the first retry. Each later retry waits twice as long
+	 * as the one before, up to a couple of seconds.
+	 *
+	 * @param initialBackoffMillis wait in milliseconds
+	 */
+	public void setInitialBackoffMillis(long initialBackoffMillis) {
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	/**
+	 * Applies a change, replaying the backlog first so changes reach the store in
+	 * roughly the order they were made. Buffers the change if the store is
+	 * unavailable or the change keeps failing.
+	 */
+	private void apply(MetricDelta delta) {
+		if (getBacklogSize() > 0)
+			replayBacklog();
+
+		// Backlog checked first, so a HALF_OPEN breaker's one trial isn't taken by a
+		// change that then gets buffered anyway
+		if (getBacklogSize() > 0 || !circuitBreaker.allowRequest()) {
+			buffer(delta);
+			return;
+		}
+
+		try {
+			withRetries(() -> delta.applyTo(delegate));
+		} catch (SQLException e) {
+			buffer(delta);
+		}
+	}
+
+	/**
+	 * Runs an operation, retrying with exponential backoff if it fails. Records
+	 * the final outcome with the circuit breaker.
+	 */
+	private void withRetries(StoreOperation operation) throws SQLException {
+		long backoff = initialBackoffMillis;
+		for (int attempt = 0;; attempt++) {
+			try {
+				operation.run();
+				circuitBreaker.recordSuccess();
+				return;
+			} catch (SQLException e) {
+				if (attempt >= maxRetries) {
+					circuitBreaker.recordFailure();
+					throw e;
+				}
+			}
+
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				circuitBreaker.recordFailure();
+				throw new SQLException("Interrupted while retrying metrics store", e);
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+
+	/**
+	 * Adds a change to the end of the backlog - the in-memory buffer if nothing
+	 * has been spilled and there is room, otherwise the spill file. If the spill
+	 * file cannot be written either the change is lost, so that is reported
+	 * loudly.
+	 */
+	private void buffer(MetricDelta delta) {
+		// Decided and written under the buffer's lock, so changes buffered at the
+		// same time keep the order they were decided in
+		synchronized (buffer) {
+			if (spillFile.size() == 0 && buffer.size() < bufferCapacity) {
+				buffer.add(delta);
+				return;
+			}
+
+			try {
+				spillFile.append(delta);
+			} catch (IOException e) {
+				System.err.println("Could not spill metric change, it has been lost: " + delta);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Replays buffered changes, then spilled ones, if the circuit breaker allows.
+	 * Stops at the first failure, leaving that change and the rest for later.
+	 * Changes are applied once each without retries - the breaker decides when
+	 * to try again.
+	 */
+	private void replayBacklog() {
+		synchronized (replayLock) {
+			if (getBacklogSize() == 0 || !circuitBreaker.allowRequest())
+				return;
+
+			try {
+				while (true) {
+					MetricDelta delta;
+					synchronized (buffer) {
+						delta = buffer.peek();
+					}
+					if (delta == null)
+						break;
+
+					delta.applyTo(delegate);
+					synchronized (buffer) {
+						buffer.poll();
+					}
+				}
+
+				spillFile.replay(delegate);
+				circuitBreaker.recordSuccess();
+			} catch (SQLException e) {
+				circuitBreaker.recordFailure();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * An operation on the delegate store.
+	 */
+	private interface StoreOperation {
+		void run() throws SQLException;
+	}
+}
@@ -0,0 +1,189 @@
+package com.alternius.store;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Append-only file of metric changes that could not be kept in memory. Each
+ * change is one line, flushed as it is written, so the file can be read back
+ * after a crash.
+ *
+ * Changes are replayed in the order they were written. A replay that fails
+ * stops at the failed change, and the next replay starts from it, so changes
+ * appended in the meantime still come after it.
+ *
+ * Replay is at-least-once: if the process dies part way through a replay, the
+ * changes already applied from it will be applied again on the next run.
+ */
+public class SpillFile {
+
+	private final Path path;
+	// The file is moved here while it is being replayed, so new changes can keep
+	// being appended to the original path. It holds older changes than the
+	// original path, so is always finished first.
+	private final Path replayPath;
+	private Writer writer;
+	// Changes in the original path
+	private long count;
+	// Changes in the replay file that have been applied, and those still waiting
+	private long replayedLines;
+	private long replayRemaining;
+
+	/**
+	 * Opens a spill file. Any changes left in it by an earlier run, including one
+	 * that died mid-replay, are kept so they are replayed too.
+	 * 
+	 * @param path location of the file, created when first needed
+	 * @throws IOException
+	 */
+	public SpillFile(Path path) throws IOException {
+		this.path = path;
+		this.replayPath = path.resolveSibling(path.getFileName() + ".replaying");
+
+		replayRemaining = countLines(replayPath);
+		count = countLines(path);
+	}
+
+	/**
+	 * Appends a change to the end of the file.
+	 * 
+	 * @param delta change to write
+	 * @throws IOException
+	 */
+	public synchronized void append(MetricDelta delta) throws IOException {
+		if (writer == null)
+			writer = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+		writer.write(delta.toLine());
+		writer.write('\n');
+		writer.flush();
+		count++;
+	}
+
+	/**
+	 * Writes changes ahead of everything already in the file, e.g. ones held in
+	 * memory that are older than anything spilled. Must not be called while a
+	 * replay is running.
+	 * 
+	 * @param deltas changes to write, oldest first
+	 * @throws IOException
+	 */
+	public synchronized void prepend(Collection<MetricDelta> deltas) throws IOException {
+		if (deltas.isEmpty())
+			return;
+
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+			for (MetricDelta delta : deltas) {
+				out.write(delta.toLine());
+				out.write('\n');
+			}
+			// Then whatever the last replay didn't get to
+			if (Files.exists(replayPath)) {
+				try (BufferedReader reader = Files.newBufferedReader(replayPath, StandardCharsets.UTF_8)) {
+					long skip = replayedLines;
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (line.isEmpty() || skip-- > 0)
+							continue;
+						out.write(line);
+						out.write('\n');
+					}
+				}
+			}
+		}
+		Files.move(tempPath, replayPath, StandardCopyOption.REPLACE_EXISTING);
+		replayRemaining += deltas.size();
+		replayedLines = 0;
+	}
+
+	/**
+	 * Applies every change in the file to a store, in the order they were
+	 * written, reading one line at a time. Changes appended while the replay runs
+	 * are applied too. If a change fails the replay stops there, and the next one
+	 * starts again from that change.
+	 * 
+	 * @param store store to apply the changes to
+	 * @return number of changes applied
+	 * @throws IOException
+	 * @throws SQLException if a change could not be applied
+	 */
+	public long replay(MetricsStore store) throws IOException, SQLException {
+		long applied = 0;
+		while (true) {
+			long skip;
+			synchronized (this) {
+				if (replayRemaining == 0) {
+					if (count == 0)
+						return applied;
+
+					if (writer != null) {
+						writer.close();
+						writer = null;
+					}
+					Files.move(path, replayPath, StandardCopyOption.REPLACE_EXISTING);
+					replayRemaining = count;
+					replayedLines = 0;
+					count = 0;
+				}
+				skip = replayedLines;
+			}
+
+			try (BufferedReader reader = Files.newBufferedReader(replayPath, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isEmpty() || skip-- > 0)
+						continue;
+
+					MetricDelta.fromLine(line).applyTo(store);
+					applied++;
+					synchronized (this) {
+						replayedLines++;
+						replayRemaining--;
+					}
+				}
+			}
+			// Only deleted once every line has been applied. If the process dies
+			// before then, the whole file is replayed again on the next start.
+			synchronized (this) {
+				Files.delete(replayPath);
+				replayRemaining = 0;
+				replayedLines = 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of changes waiting in the file, including any left from
+	 * a replay that failed.
+	 * 
+	 * @return count of spilled changes
+	 */
+	public synchronized long size() {
+		return replayRemaining + count;
+	}
+
+	private static long countLines(Path file) throws IOException {
+		if (!Files.exists(file))
+			return 0;
+
+		long lines = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty())
+					lines++;
+			}
+		}
+		return lines;
+	}
+}
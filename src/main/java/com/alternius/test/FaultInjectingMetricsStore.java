@@ -0,0 +1,84 @@
+package com.alternius.test;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Random;
+
+import com.alternius.models.GroupBalance;
+import com.alternius.models.GroupTransfer;
+import com.alternius.store.MetricsStore;
+
+/**
+ * Store that passes changes on to another store but can be told to fail, to
+ * check how the rest of the code copes with the database going away.
+ */
+public class FaultInjectingMetricsStore implements MetricsStore {
+
+	private final MetricsStore delegate;
+	private final Random random = new Random();
+
+	private volatile boolean down;
+	private volatile double failureRate;
+
+	/**
+	 * Wraps a store. Starts out passing every change through.
+	 * 
+	 * @param delegate store to pass changes to when not failing
+	 */
+	public FaultInjectingMetricsStore(MetricsStore delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Makes every call fail, as if the database was unreachable, or stops doing
+	 * so.
+	 * 
+	 * @param down whether every call should fail
+	 */
+	public void setDown(boolean down) {
+		this.down = down;
+	}
+
+	/**
+	 * Makes a random fraction of calls fail, as if the connection was flaky.
+	 * 
+	 * @param failureRate chance of each call failing, from 0 to 1
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	@Override
+	public void addGroupTransfer(LocalDate date, long originGroupId, long destinationGroupId, long amount,
+			long count) throws SQLException {
+		maybeFail();
+		delegate.addGroupTransfer(date, originGroupId, destinationGroupId, amount, count);
+	}
+
+	@Override
+	public void addGroupBalance(long groupId, LocalDate date, long amount) throws SQLException {
+		maybeFail();
+		delegate.addGroupBalance(groupId, date, amount);
+	}
+
+	@Override
+	public void bulkLoad(Collection<GroupTransfer> transfers, Collection<GroupBalance> balances)
+			throws SQLException {
+		maybeFail();
+		delegate.bulkLoad(transfers, balances);
+	}
+
+	@Override
+	public void flush() throws SQLException {
+		maybeFail();
+		delegate.flush();
+	}
+
+	private void maybeFail() throws SQLException {
+		if (down)
+			throw new SQLException("Injected fault: store is down");
+		if (failureRate > 0 && random.nextDouble() < failureRate)
+			throw new SQLException("Injected fault: random failure");
+	}
+}
@@ -0,0 +1,98 @@
+package com.alternius.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+import com.alternius.core.EconomyAnalysis;
+import com.alternius.models.Account;
+import com.alternius.models.GroupTransfer;
+import com.alternius.models.Transaction;
+import com.alternius.store.CircuitBreaker;
+import com.alternius.store.InMemoryMetricsStore;
+import com.alternius.store.ResilientMetricsStore;
+
+/**
+ * Test class to check that no metrics are lost when the store goes down part
+ * way through processing. Runs the same mock transactions through a healthy
+ * store and through a ResilientMetricsStore wrapping a store that fails for a
+ * while, then compares the results.
+ */
+public class OutageSimulation {
+
+	private static Account[] mockAccounts = { new Account(1000000000000001L, 1), new Account(2000000000000001L, 2),
+			new Account(3000000000000001L, 3), new Account(4000000000000001L, 4), new Account(1000000000000002L, 1), };
+
+	public static void main(String[] args) throws IOException, SQLException {
+		InMemoryMetricsStore expected = new InMemoryMetricsStore();
+		InMemoryMetricsStore actual = new InMemoryMetricsStore();
+		FaultInjectingMetricsStore faultyStore = new FaultInjectingMetricsStore(actual);
+
+		Path spillPath = Files.createTempFile("metrics-spill", ".log");
+		Files.delete(spillPath);
+		// Small buffer so the simulation spills to disk as well
+		ResilientMetricsStore resilientStore = new ResilientMetricsStore(faultyStore, new CircuitBreaker(3, 100),
+				spillPath, 50);
+		resilientStore.setInitialBackoffMillis(1);
+
+		EconomyAnalysis reference = new EconomyAnalysis(expected);
+		EconomyAnalysis underTest = new EconomyAnalysis(resilientStore);
+
+		LocalDate date = LocalDate.now();
+		for (int i = 0; i < 1000; i++) {
+			// Store is down for a stretch in the middle, and flaky the rest of the time
+			faultyStore.setDown(i >= 300 && i < 600);
+			faultyStore.setFailureRate(0.05);
+
+			Account sender = mockAccounts[(int) (Math.random() * mockAccounts.length)];
+			Account recipient = mockAccounts[(int) (Math.random() * mockAccounts.length)];
+			while (recipient.getId() == sender.getId()) {
+				recipient = mockAccounts[(int) (Math.random() * mockAccounts.length)];
+			}
+
+			Transaction transaction = new Transaction(i, 1000 + (long) (Math.random() * 99000), sender, recipient,
+					date);
+			reference.processTransaction(transaction);
+			underTest.processTransaction(transaction);
+		}
+
+		System.out.println("Backlog after outage: " + resilientStore.getBacklogSize());
+
+		// Let the store recover and drain everything that was held back
+		faultyStore.setFailureRate(0);
+		faultyStore.setDown(false);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (resilientStore.getBacklogSize() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				resilientStore.flush();
+			} catch (SQLException e) {
+				// Breaker still open, try again shortly
+			}
+		}
+		resilientStore.close();
+
+		int mismatches = 0;
+		for (GroupTransfer transfer : expected.getGroupTransfers()) {
+			GroupTransfer stored = actual.getGroupTransfer(transfer.getDate(), transfer.getOriginGroupId(),
+					transfer.getDestinationGroupId());
+			if (stored == null || stored.getNumTransfers() != transfer.getNumTransfers()
+					|| stored.getSumTransfers() != transfer.getSumTransfers()) {
+				System.err.println("Mismatch: expected " + transfer + " but found " + stored);
+				mismatches++;
+			}
+		}
+		for (long groupId = 1; groupId <= 4; groupId++) {
+			Long expectedBalance = expected.getGroupBalance(groupId, date);
+			Long storedBalance = actual.getGroupBalance(groupId, date);
+			if (expectedBalance == null ? storedBalance != null : !expectedBalance.equals(storedBalance)) {
+				System.err.println("Mismatch: expected balance " + expectedBalance + " for group " + groupId
+						+ " but found " + storedBalance);
+				mismatches++;
+			}
+		}
+
+		System.out.println(mismatches == 0 ? "No metrics lost" : mismatches + " mismatched metrics");
+	}
+}
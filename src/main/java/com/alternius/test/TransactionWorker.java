@@ -1,13 +1,21 @@
 package com.alternius.test;
 
 import com.alternius.db.DatabaseConnector;
+import com.alternius.db.SchemaManager;
 import com.alternius.models.Account;
 import com.alternius.models.Transaction;
 
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.alternius.core.EconomyAnalysis;
+import com.alternius.store.AggregatingMetricsStore;
+import com.alternius.store.InMemoryMetricsStore;
+import com.alternius.store.MetricsStore;
+import com.alternius.store.PostgresMetricsStore;
 
 /**
  * Test class to process mock transactions.
@@ -27,12 +35,34 @@ public class TransactionWorker {
 			new Account(3000000000000001L, 3), new Account(4000000000000001L, 4), new Account(1000000000000002L, 1), };
 
 	public static void main(String[] args) {
-		try {
-			DatabaseConnector dbConnector = new DatabaseConnector(DB_HOST, DB_PORT, DB_USER, DB_PASSWORD, DB_DATABASE);
+		// Pass --in-memory to run without a database, e.g. to time the processing
+		// logic on its own. Pass --aggregate to sum group transfers in memory and
+		// write them behind.
+		List<String> options = Arrays.asList(args);
+		boolean inMemory = options.contains("--in-memory");
+		boolean aggregate = options.contains("--aggregate");
 
-			EconomyAnalysis economyAnalysis = new EconomyAnalysis(dbConnector);
+		try {
+			MetricsStore metricsStore;
+			if (inMemory) {
+				metricsStore = new InMemoryMetricsStore();
+			} else {
+				DatabaseConnector dbConnector = new DatabaseConnector(DB_HOST, DB_PORT, DB_USER, DB_PASSWORD,
+						DB_DATABASE);
+				// Make sure the metric tables and this month's partitions exist
+				SchemaManager schemaManager = new SchemaManager(dbConnector);
+				schemaManager.createSchema();
+				PostgresMetricsStore postgresStore = new PostgresMetricsStore(dbConnector);
+				// Backfills get partitions for whatever months they cover
+				postgresStore.setSchemaManager(schemaManager);
+				metricsStore = postgresStore;
+			}
+			if (aggregate)
+				metricsStore = new AggregatingMetricsStore(metricsStore);
+			EconomyAnalysis economyAnalysis = new EconomyAnalysis(metricsStore);
 
-			// Creates 50 random transactions and processes each one
+			// Creates 50 random transactions and processes them as one batch
+			List<Transaction> mockTransactions = new ArrayList<>();
 			for (int i = 0; i < 50; i++) {
 				// Picks a random account from mockAccounts to be the sender
 				Account sender = mockAccounts[(int) (Math.random() * mockAccounts.length)];
@@ -49,9 +79,13 @@ public class TransactionWorker {
 						LocalDate.now());
 				// Debugging - prints each created transaction to console
 				System.out.println(mockTransaction + "\n");
-				// Processes metrics using transaction
-				economyAnalysis.processTransaction(mockTransaction);
+				mockTransactions.add(mockTransaction);
 			}
+			// Processes metrics using the whole batch, so each group pair and group is
+			// only written once
+			economyAnalysis.processTransactions(mockTransactions);
+			// Write anything still held back by the store
+			economyAnalysis.flush();
 			// Welcome to lazy exception handling
 		} catch (ClassNotFoundException e) {
 			System.err.println("PostgreSQL driver not found");
@@ -0,0 +1,123 @@
+package com.alternius.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+import com.alternius.models.Account;
+import com.alternius.models.Transaction;
+
+public class SubmitQueueTest {
+
+	private static Transaction transaction(long id) {
+		return new Transaction(id, 100, new Account(1, 1), new Account(2, 2), LocalDate.of(2024, 1, 1));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void shutdownRejectsNewSubmits() {
+		SubmitQueue queue = new SubmitQueue(4, 1, SubmitPolicy.BLOCK, 0, transaction -> {
+		});
+		queue.shutdown();
+
+		try {
+			queue.submit(transaction(1));
+			fail("Submit after shutdown was accepted");
+		} catch (RejectedExecutionException e) {
+			assertEquals(1, queue.getRejectedCount());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void shutdownFinishesQueuedTransactions() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		SubmitQueue queue = new SubmitQueue(4, 1, SubmitPolicy.BLOCK, 0, transaction -> await(release));
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (long id = 1; id <= 3; id++) {
+			futures.add(queue.submit(transaction(id)));
+		}
+
+		Thread shutdown = new Thread(queue::shutdown);
+		shutdown.start();
+		// Waiting for the worker, so the queue has been marked shut down
+		while (shutdown.getState() != Thread.State.WAITING) {
+			Thread.yield();
+		}
+
+		try {
+			queue.submit(transaction(4));
+			fail("Submit during shutdown was accepted");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+		for (CompletableFuture<Void> future : futures) {
+			assertFalse(future.isDone());
+		}
+
+		release.countDown();
+		shutdown.join();
+
+		for (CompletableFuture<Void> future : futures) {
+			assertTrue(future.isDone());
+		}
+		assertEquals(3, queue.getAcceptedCount());
+		assertEquals(3, queue.getProcessedCount());
+		assertEquals(1, queue.getRejectedCount());
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test(timeout = 10000)
+	public void failFastRejectsWhenFull() {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		SubmitQueue queue = new SubmitQueue(1, 1, SubmitPolicy.FAIL_FAST, 0, transaction -> {
+			started.countDown();
+			await(release);
+		});
+
+		queue.submit(transaction(1));
+		// The worker holds the first, so the second fills the queue
+		await(started);
+		queue.submit(transaction(2));
+		try {
+			queue.submit(transaction(3));
+			fail("Submit to a full queue was accepted");
+		} catch (RejectedExecutionException e) {
+			assertEquals(1, queue.getRejectedCount());
+		}
+
+		release.countDown();
+		queue.shutdown();
+		assertEquals(2, queue.getProcessedCount());
+	}
+
+	@Test(timeout = 10000)
+	public void processorFailureCompletesFutureExceptionally() {
+		SubmitQueue queue = new SubmitQueue(4, 1, SubmitPolicy.BLOCK, 0, transaction -> {
+			throw new IllegalStateException("failed");
+		});
+
+		CompletableFuture<Void> future = queue.submit(transaction(1));
+		queue.shutdown();
+
+		assertTrue(future.isCompletedExceptionally());
+		assertEquals(1, queue.getProcessedCount());
+	}
+}
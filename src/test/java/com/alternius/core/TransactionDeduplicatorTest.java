@@ -0,0 +1,126 @@
+package com.alternius.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransactionDeduplicatorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void claimRejectsIdBeingProcessed() {
+		TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+
+		assertTrue(deduplicator.claim(1));
+		assertFalse(deduplicator.claim(1));
+		assertEquals(1, deduplicator.getDuplicateCount());
+	}
+
+	@Test
+	public void claimRejectsIdAlreadySeen() {
+		TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+
+		assertTrue(deduplicator.claim(1));
+		deduplicator.markSeen(1);
+		assertFalse(deduplicator.claim(1));
+	}
+
+	@Test
+	public void releaseLetsRetryThrough() {
+		TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+
+		assertTrue(deduplicator.claim(1));
+		deduplicator.release(1);
+		assertTrue(deduplicator.claim(1));
+		assertEquals(0, deduplicator.getDuplicateCount());
+	}
+
+	@Test
+	public void checkpointStaysBelowUnrecordedIds() {
+		TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+		deduplicator.claim(1);
+		deduplicator.claim(2);
+		deduplicator.claim(3);
+		deduplicator.markSeen(1);
+		deduplicator.markSeen(3);
+
+		assertEquals(1, deduplicator.checkpoint());
+
+		// A released ID still holds the checkpoint until it is recorded
+		deduplicator.release(2);
+		assertEquals(1, deduplicator.checkpoint());
+
+		deduplicator.claim(2);
+		deduplicator.markSeen(2);
+		assertEquals(3, deduplicator.checkpoint());
+	}
+
+	@Test
+	public void watermarkRejectsProcessedIdsAfterRestart() throws IOException {
+		Path watermarkPath = folder.getRoot().toPath().resolve("watermark");
+		TransactionDeduplicator deduplicator = TransactionDeduplicator.withWatermark(watermarkPath);
+		for (long id = 1; id <= 3; id++) {
+			deduplicator.claim(id);
+			deduplicator.markSeen(id);
+		}
+		deduplicator.advanceWatermark(deduplicator.checkpoint());
+
+		assertEquals("3", new String(Files.readAllBytes(watermarkPath), StandardCharsets.UTF_8));
+
+		TransactionDeduplicator restarted = TransactionDeduplicator.withWatermark(watermarkPath);
+		assertFalse(restarted.claim(3));
+		assertTrue(restarted.claim(4));
+	}
+
+	@Test
+	public void watermarkOnlyCoversCheckpointedIds() throws IOException {
+		Path watermarkPath = folder.getRoot().toPath().resolve("watermark");
+		TransactionDeduplicator deduplicator = TransactionDeduplicator.withWatermark(watermarkPath);
+		deduplicator.claim(1);
+		deduplicator.markSeen(1);
+		long checkpoint = deduplicator.checkpoint();
+		// Recorded after the checkpoint was taken, so not covered by the flush
+		deduplicator.claim(2);
+		deduplicator.markSeen(2);
+		deduplicator.advanceWatermark(checkpoint);
+
+		TransactionDeduplicator restarted = TransactionDeduplicator.withWatermark(watermarkPath);
+		assertFalse(restarted.claim(1));
+		assertTrue(restarted.claim(2));
+	}
+
+	@Test
+	public void watermarkNeverMovesBack() throws IOException {
+		Path watermarkPath = folder.getRoot().toPath().resolve("watermark");
+		TransactionDeduplicator deduplicator = TransactionDeduplicator.withWatermark(watermarkPath);
+		deduplicator.advanceWatermark(5);
+		deduplicator.advanceWatermark(2);
+
+		assertEquals("5", new String(Files.readAllBytes(watermarkPath), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void bloomFilterMatchRejectedAfterEviction() {
+		// Exact set of two IDs, so the first is evicted by the third
+		TransactionDeduplicator deduplicator = new TransactionDeduplicator(2, 4, 60 * 60 * 1000, 1000, 0.000001);
+		for (long id = 1; id <= 3; id++) {
+			deduplicator.claim(id);
+			deduplicator.markSeen(id);
+		}
+
+		assertFalse(deduplicator.claim(1));
+		assertEquals(1, deduplicator.getProbableDuplicateCount());
+		assertEquals(0, deduplicator.getDuplicateCount());
+	}
+}
@@ -0,0 +1,66 @@
+package com.alternius.db;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogramReturnsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getQuantileMicros(0.99));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 0; micros < 8; micros++) {
+			histogram.record(micros);
+		}
+
+		assertEquals(0, histogram.getQuantileMicros(0.125));
+		assertEquals(3, histogram.getQuantileMicros(0.5));
+		assertEquals(7, histogram.getQuantileMicros(1));
+	}
+
+	@Test
+	public void quantileRoundsUpToTopOfBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 100; micros++) {
+			histogram.record(micros);
+		}
+
+		// 50 falls in the bucket 48-51
+		assertEquals(51, histogram.getQuantileMicros(0.5));
+		// 99 falls in the bucket 96-103, capped by the largest value recorded
+		assertEquals(100, histogram.getQuantileMicros(0.99));
+	}
+
+	@Test
+	public void largeValuesKeepPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.record(2000);
+
+		// 1000 falls in the bucket 960-1023
+		assertEquals(1023, histogram.getQuantileMicros(0.5));
+		assertEquals(2000, histogram.getQuantileMicros(1));
+	}
+
+	@Test
+	public void tracksCountTotalAndMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(10);
+		histogram.record(300);
+		histogram.record(-5);
+
+		assertEquals(3, histogram.getCount());
+		assertEquals(310, histogram.getTotalMicros());
+		assertEquals(300, histogram.getMaxMicros());
+		// Negative latencies are recorded as 0
+		assertEquals(0, histogram.getQuantileMicros(0.1));
+	}
+}
@@ -0,0 +1,97 @@
+package com.alternius.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class GroupBalanceCacheTest {
+
+	private static final LocalDate DAY = LocalDate.of(2024, 1, 1);
+
+	@Test
+	public void firstBalanceOpensAtZero() {
+		GroupBalanceCache cache = new GroupBalanceCache();
+
+		assertEquals(Long.valueOf(0), cache.add(1, DAY, 100));
+		assertEquals(Long.valueOf(0), cache.add(1, DAY, -30));
+	}
+
+	@Test
+	public void nextDayOpensFromClosingBalance() {
+		GroupBalanceCache cache = new GroupBalanceCache();
+		cache.add(1, DAY, 100);
+		cache.add(1, DAY, -30);
+
+		assertEquals(Long.valueOf(70), cache.add(1, DAY.plusDays(1), 10));
+		// Days without a balance are skipped over
+		assertEquals(Long.valueOf(80), cache.add(1, DAY.plusDays(5), 10));
+	}
+
+	@Test
+	public void lateChangeHasToBeLookedUp() {
+		GroupBalanceCache cache = new GroupBalanceCache();
+		cache.add(1, DAY.plusDays(1), 100);
+
+		assertNull(cache.add(1, DAY, 50));
+		// The late change isn't counted in the cached balance
+		assertEquals(Long.valueOf(100), cache.add(1, DAY.plusDays(2), 0));
+	}
+
+	@Test
+	public void firstRollOverOnlySetsOpenDay() {
+		GroupBalanceCache cache = new GroupBalanceCache();
+
+		assertNull(cache.rollOver(DAY));
+		assertNull(cache.rollOver(DAY));
+	}
+
+	@Test
+	public void rollOverOpensEveryGroupBehindNewDay() {
+		GroupBalanceCache cache = new GroupBalanceCache();
+		cache.put(1, DAY, 0, 100);
+		cache.put(2, DAY, 50, 200);
+		cache.put(3, DAY.plusDays(1), 0, 300);
+		cache.markLoaded();
+
+		assertNull(cache.rollOver(DAY.plusDays(1)));
+		// Group 3 has already opened the new day itself
+		assertEquals(Long.valueOf(300), cache.add(3, DAY.plusDays(2), 5));
+		assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), cache.rollOver(DAY.plusDays(2)));
+		// Already rolled over to that day
+		assertNull(cache.rollOver(DAY.plusDays(2)));
+
+		assertEquals(Long.valueOf(100), cache.add(1, DAY.plusDays(2), 10));
+		assertEquals(Long.valueOf(200), cache.add(2, DAY.plusDays(2), 10));
+		assertEquals(Long.valueOf(300), cache.add(3, DAY.plusDays(2), 10));
+	}
+
+	@Test
+	public void lateChangeAfterRollOverHasToBeLookedUp() {
+		GroupBalanceCache cache = new GroupBalanceCache();
+		cache.put(1, DAY, 0, 100);
+		cache.markLoaded();
+		cache.rollOver(DAY.plusDays(1));
+
+		assertNull(cache.add(1, DAY, 10));
+	}
+
+	@Test
+	public void invalidateEmptiesCache() {
+		GroupBalanceCache cache = new GroupBalanceCache();
+		cache.put(1, DAY, 0, 100);
+		cache.markLoaded();
+		assertTrue(cache.isLoaded());
+
+		cache.invalidate();
+
+		assertFalse(cache.isLoaded());
+		assertEquals(Long.valueOf(0), cache.add(1, DAY, 10));
+	}
+}